@@ -0,0 +1,120 @@
+package su.whs.wlazydrawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+/**
+ * steady-state draw() of LazyDrawable must not allocate
+ * (draws are counted on main thread, after warm-up frames)
+ */
+public class DrawAllocationTest extends InstrumentationTestCase {
+    private static final int WARMUP_FRAMES = 10;
+    private static final int FRAMES = 200;
+
+    private Bitmap mTarget;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTarget = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mTarget);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTarget.recycle();
+        super.tearDown();
+    }
+
+    public void testLoadedDrawableDrawDoesNotAllocate() throws Exception {
+        Drawable source = loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.CENTER_CROP, 50, 100);
+        assertTrue(source.getBounds().width() <= 200 && source.getBounds().height() <= 200);
+    }
+
+    public void testCenterCropHorizontalEdgesDoNotAllocate() throws Exception {
+        Drawable source = loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.CENTER_CROP, 400, 100);
+        assertTrue("horizontal edges not reached", source.getBounds().width() > 200);
+    }
+
+    public void testCenterCropVerticalEdgesDoNotAllocate() throws Exception {
+        Drawable source = loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.CENTER_CROP, 100, 400);
+        assertTrue("vertical edges not reached", source.getBounds().height() > 200);
+    }
+
+    public void testFillDrawDoesNotAllocate() throws Exception {
+        loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.FILL, 400, 100);
+    }
+
+    public void testScaleFitDrawDoesNotAllocate() throws Exception {
+        loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.SCALE_FIT, 400, 100);
+    }
+
+    public void testNoScaleDrawDoesNotAllocate() throws Exception {
+        loadedDrawDoesNotAllocate(LazyDrawable.ScaleType.NONE, 400, 100);
+    }
+
+    /**
+     * set loaded source of given size into 200x200 bounds and count draw allocations
+     * @return source drawable (with bounds applied)
+     */
+    private Drawable loadedDrawDoesNotAllocate(LazyDrawable.ScaleType scaleType, int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        bitmap.setDensity(Bitmap.DENSITY_NONE); // intrinsic size == bitmap size, on any screen density
+        Drawable source = new BitmapDrawable(getInstrumentation().getTargetContext().getResources(), bitmap);
+        TestLazyDrawable drawable = new TestLazyDrawable("alloc-" + scaleType, 200, 200, scaleType, source, false);
+        drawable.setBounds(0, 0, 200, 200);
+        drawable.setDrawable(source);
+        assertEquals(0, countDrawAllocations(drawable));
+        return source;
+    }
+
+    public void testLoadingFrameDrawDoesNotAllocate() throws Exception {
+        TestLazyDrawable drawable = new TestLazyDrawable("alloc-loading", 200, 200, LazyDrawable.ScaleType.CENTER_CROP,
+                new ColorDrawable(Color.RED), true);
+        Drawable spinner = new ColorDrawable(Color.GRAY);
+        spinner.setBounds(0, 0, 16, 16);
+        drawable.setLoadingDrawable(spinner);
+        drawable.setBounds(0, 0, 200, 200);
+        try {
+            drawable.load();
+            long deadline = SystemClock.uptimeMillis() + 5000;
+            while (drawable.getLoadState()!=LazyDrawable.LoadState.LOADING && SystemClock.uptimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(LazyDrawable.LoadState.LOADING, drawable.getLoadState());
+            assertEquals(0, countDrawAllocations(drawable));
+        } finally {
+            drawable.release();
+        }
+    }
+
+    /**
+     * draw drawable on main thread, as host does
+     * @return number of objects allocated by measured frames
+     */
+    @SuppressWarnings("deprecation")
+    private int countDrawAllocations(final Drawable drawable) {
+        final int[] count = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < WARMUP_FRAMES; i++)
+                    drawable.draw(mCanvas);
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int i = 0; i < FRAMES; i++)
+                    drawable.draw(mCanvas);
+                Debug.stopAllocCounting();
+                count[0] = Debug.getThreadAllocCount();
+            }
+        });
+        return count[0];
+    }
+}
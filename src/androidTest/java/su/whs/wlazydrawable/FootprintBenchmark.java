@@ -0,0 +1,90 @@
+package su.whs.wlazydrawable;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * per-instance heap and construction time of LazyDrawable / RemoteDrawable
+ * (results are reported to logcat with tag "FootprintBenchmark", compare runs before and after change)
+ */
+public class FootprintBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "FootprintBenchmark";
+    private static final int INSTANCES = 2000;
+    private static final int ROUNDS = 3;
+
+    public void testLazyDrawableFootprint() throws Exception {
+        final ColorDrawable source = new ColorDrawable(Color.RED);
+        report("LazyDrawable", new Factory() {
+            @Override
+            public Object create(int i) {
+                return new TestLazyDrawable("footprint", 100, 100, LazyDrawable.ScaleType.CENTER_CROP, source, false);
+            }
+        });
+    }
+
+    public void testRemoteDrawableFootprint() throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        report("RemoteDrawable", new Factory() {
+            @Override
+            public Object create(int i) {
+                return new BenchmarkRemoteDrawable(context, "http://localhost/" + i + ".jpg");
+            }
+        });
+    }
+
+    private interface Factory {
+        Object create(int i);
+    }
+
+    private void report(String name, Factory factory) {
+        factory.create(-1); // warm up: class loading, shared executors and resources
+        long bestBytes = Long.MAX_VALUE;
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            Object[] instances = new Object[INSTANCES];
+            long before = usedHeap();
+            long started = System.nanoTime();
+            for (int i = 0; i < INSTANCES; i++)
+                instances[i] = factory.create(i);
+            long nanos = System.nanoTime() - started;
+            long bytes = usedHeap() - before;
+            assertEquals(INSTANCES, instances.length); // keep instances reachable until measured
+            bestBytes = Math.min(bestBytes, bytes);
+            bestNanos = Math.min(bestNanos, nanos);
+        }
+        Log.i(TAG, name + ": " + (bestBytes / INSTANCES) + " bytes/instance, "
+                + (bestNanos / INSTANCES) + " ns/construction (" + INSTANCES + " instances, best of " + ROUNDS + ")");
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static class BenchmarkRemoteDrawable extends RemoteDrawable {
+        BenchmarkRemoteDrawable(Context context, String url) {
+            super(context, url, "image/jpeg", 100, 100);
+        }
+
+        @Override
+        protected void onSizeDecoded(int width, int height) {}
+
+        @Override
+        protected void onLoadingError() {}
+
+        @Override
+        protected InputStream getInputStream(String url) throws IOException {
+            throw new IOException("not loaded by benchmark");
+        }
+    }
+}
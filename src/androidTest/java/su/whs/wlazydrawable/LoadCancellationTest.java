@@ -0,0 +1,128 @@
+package su.whs.wlazydrawable;
+
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import su.whs.images.LoadCancellation;
+import su.whs.images.SingleFlight;
+
+/**
+ * cancel called from UI thread must not block on stream close,
+ * cancelled SingleFlight waiter must not wait for leader
+ */
+public class LoadCancellationTest extends InstrumentationTestCase {
+
+    public void testCancelFromMainLooperClosesOffMainThread() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean closedOnMain = new AtomicBoolean(true);
+        final LoadCancellation cancellation = new LoadCancellation();
+        cancellation.register(new Closeable() {
+            @Override
+            public void close() throws IOException {
+                closedOnMain.set(Looper.myLooper()==Looper.getMainLooper());
+                closed.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS); // slow network close
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final long[] cancelMs = new long[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                cancellation.cancel();
+                cancelMs[0] = (System.nanoTime() - start) / 1000000L;
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertFalse(closedOnMain.get());
+        assertTrue("cancel() blocked for " + cancelMs[0] + "ms", cancelMs[0] < 1000);
+    }
+
+    public void testCancelledWaiterLeavesFlight() throws Exception {
+        final SingleFlight<String,String> flight = new SingleFlight<String, String>();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch leaderRelease = new CountDownLatch(1);
+        final SingleFlight.Call<String> call = new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                leaderStarted.countDown();
+                try {
+                    leaderRelease.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return "result";
+            }
+        };
+        final AtomicReference<Object> leaderResult = new AtomicReference<Object>();
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    leaderResult.set(flight.execute("key", call));
+                } catch (IOException e) {
+                    leaderResult.set(e);
+                }
+            }
+        });
+        leader.start();
+        assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+
+        final LoadCancellation cancelled = new LoadCancellation();
+        final AtomicReference<Object> cancelledResult = new AtomicReference<Object>();
+        final CountDownLatch cancelledDone = new CountDownLatch(1);
+        Thread cancelledWaiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.attach();
+                try {
+                    cancelledResult.set(flight.execute("key", call));
+                } catch (IOException e) {
+                    cancelledResult.set(e);
+                } finally {
+                    cancelled.detach();
+                    cancelledDone.countDown();
+                }
+            }
+        });
+        final AtomicReference<Object> otherResult = new AtomicReference<Object>();
+        Thread otherWaiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherResult.set(flight.execute("key", call));
+                } catch (IOException e) {
+                    otherResult.set(e);
+                }
+            }
+        });
+        cancelledWaiter.start();
+        otherWaiter.start();
+        Thread.sleep(100); // both waiters attached to flight
+
+        cancelled.cancel();
+        assertTrue("cancelled waiter still waits for leader", cancelledDone.await(1, TimeUnit.SECONDS));
+        assertTrue(cancelledResult.get() instanceof InterruptedIOException);
+        assertTrue(leader.isAlive());
+
+        leaderRelease.countDown();
+        leader.join(5000);
+        otherWaiter.join(5000);
+        assertEquals("result", leaderResult.get());
+        assertEquals("result", otherResult.get());
+    }
+}
@@ -0,0 +1,86 @@
+package su.whs.wlazydrawable;
+
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * full executor queue with equal priorities (no viewport): rejected drawable must not
+ * invalidate itself on every frame
+ */
+public class OverloadTest extends InstrumentationTestCase {
+    private static final int FRAMES = 10;
+
+    private static class SingleSlotDrawable extends TestLazyDrawable {
+        SingleSlotDrawable(Object tag) {
+            super(tag, 100, 100, ScaleType.CENTER_CROP, new ColorDrawable(Color.RED), true);
+        }
+
+        @Override
+        protected int getExecutorPoolSize() { return 1; }
+
+        @Override
+        protected int getExecutorMaxPoolSize() { return 1; }
+
+        @Override
+        protected int getExecutorQueueCapacity() { return 1; }
+    }
+
+    private static class CountingCallback implements Drawable.Callback {
+        final AtomicInteger mInvalidates = new AtomicInteger();
+
+        @Override
+        public void invalidateDrawable(Drawable who) { mInvalidates.incrementAndGet(); }
+
+        @Override
+        public void scheduleDrawable(Drawable who, Runnable what, long when) {}
+
+        @Override
+        public void unscheduleDrawable(Drawable who, Runnable what) {}
+    }
+
+    public void testRejectedLoadDoesNotInvalidateEveryFrame() throws Exception {
+        Object tag = new Object();
+        SingleSlotDrawable running = new SingleSlotDrawable(tag);
+        SingleSlotDrawable queued = new SingleSlotDrawable(tag);
+        final SingleSlotDrawable rejected = new SingleSlotDrawable(tag);
+        CountingCallback callback = new CountingCallback();
+        rejected.setCallbackCompat(callback);
+        try {
+            running.load();
+            waitForState(running, LazyDrawable.LoadState.LOADING);
+            queued.load();
+            assertEquals(LazyDrawable.LoadState.QUEUED, queued.getLoadState());
+
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < FRAMES; i++)
+                        rejected.load(); // draw() of visible drawable
+                }
+            });
+            getInstrumentation().waitForIdleSync();
+            assertEquals(LazyDrawable.LoadState.IDLE, rejected.getLoadState());
+            assertEquals(0, callback.mInvalidates.get());
+
+            Thread.sleep(500); // retry after backoff, once
+            getInstrumentation().waitForIdleSync();
+            assertEquals(1, callback.mInvalidates.get());
+        } finally {
+            running.release();
+            queued.release();
+            rejected.release();
+        }
+    }
+
+    private static void waitForState(LazyDrawable drawable, LazyDrawable.LoadState state) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + 5000;
+        while (drawable.getLoadState()!=state && SystemClock.uptimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(state, drawable.getLoadState());
+    }
+}
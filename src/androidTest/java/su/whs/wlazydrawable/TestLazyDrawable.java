@@ -0,0 +1,44 @@
+package su.whs.wlazydrawable;
+
+import android.graphics.drawable.Drawable;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * LazyDrawable with in-memory source for instrumented tests
+ * readDrawable() waits for {@link #release()} (if blocked), then returns source drawable
+ */
+class TestLazyDrawable extends LazyDrawable {
+    private final Drawable mSource;
+    private final CountDownLatch mGate;
+
+    TestLazyDrawable(Object executorTag, int width, int height, ScaleType scaleType, Drawable source, boolean blocked) {
+        super(executorTag, width, height, scaleType);
+        mSource = source;
+        mGate = new CountDownLatch(blocked ? 1 : 0);
+    }
+
+    /**
+     * let blocked readDrawable() return
+     */
+    void release() { mGate.countDown(); }
+
+    @Override
+    protected Drawable readDrawable() {
+        try {
+            mGate.await();
+        } catch (InterruptedException e) {
+            return null;
+        }
+        return mSource;
+    }
+
+    @Override
+    protected void onLoadingError() {}
+
+    @Override
+    public void onVisibilityChanged(boolean visible) {}
+
+    @Override
+    protected int getSampling() { return 1; }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * single animation clock for all animated drawables (loading spinners, gif playback)
+ *
+ * drawables register from draw(); clock ticks with vsync (Choreographer on API 16+,
+ * Handler with 16ms delay on older versions) only while registered drawables exists;
+ * drawable, which requested redraw on tick, but was not drawn before next tick (off-screen),
+ * are dropped from clock (ticks without redraw request, for example between gif frames, keep it)
+ *
+ * main thread only
+ */
+public final class AnimationClock {
+    private static final long FRAME_DELAY = 16;
+    private static AnimationClock sInstance = null;
+
+    /** {@link Client#onFrame(long)} result: stop receiving ticks */
+    public static final int STOP = 0;
+    /** {@link Client#onFrame(long)} result: nothing to redraw on this tick, keep ticking */
+    public static final int IDLE = 1;
+    /** {@link Client#onFrame(long)} result: client invalidated, it must be drawn before next tick */
+    public static final int INVALIDATED = 2;
+
+    /**
+     * animated drawable
+     */
+    public interface Client {
+        /**
+         * called on every clock tick (main thread)
+         * @param frameTime - frame time, SystemClock.uptimeMillis() base
+         * @return {@link #STOP}, {@link #IDLE} or {@link #INVALIDATED}
+         */
+        int onFrame(long frameTime);
+    }
+
+    private enum State {
+        DRAWN,   // drawn since previous tick
+        IDLE,    // not drawn, redraw not requested
+        PENDING  // redraw requested on previous tick, not drawn yet
+    }
+
+    private final HashMap<Client,State> mClients = new HashMap<Client, State>();
+    private final ArrayList<Client> mTick = new ArrayList<Client>();
+    private final Ticker mTicker;
+    private boolean mScheduled = false;
+    private long mFrameTime = 0;
+
+    private AnimationClock() {
+        mTicker = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new ChoreographerTicker() : new HandlerTicker();
+    }
+
+    public static synchronized AnimationClock getInstance() {
+        if (sInstance==null)
+            sInstance = new AnimationClock();
+        return sInstance;
+    }
+
+    /**
+     * register client for next ticks; must be called from every draw() of animated drawable
+     * @param client
+     */
+    public void register(Client client) {
+        mClients.put(client, State.DRAWN);
+        if (!mScheduled) {
+            mScheduled = true;
+            mTicker.schedule();
+        }
+    }
+
+    public void unregister(Client client) {
+        mClients.remove(client);
+    }
+
+    /**
+     *
+     * @return time of current frame (or uptimeMillis(), if clock not ticking)
+     */
+    public long getFrameTime() {
+        return mScheduled && mFrameTime > 0 ? mFrameTime : SystemClock.uptimeMillis();
+    }
+
+    private void tick(long frameTime) {
+        mScheduled = false;
+        mFrameTime = frameTime;
+        Iterator<Map.Entry<Client,State>> it = mClients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Client,State> e = it.next();
+            if (e.getValue()==State.PENDING) {
+                it.remove(); // invalidated, but not drawn - off-screen
+            } else {
+                e.setValue(State.IDLE);
+                mTick.add(e.getKey());
+            }
+        }
+        for (int i = 0; i < mTick.size(); i++) {
+            Client client = mTick.get(i);
+            int result = client.onFrame(frameTime);
+            if (result==STOP)
+                mClients.remove(client);
+            else if (result==INVALIDATED && mClients.get(client)==State.IDLE)
+                mClients.put(client, State.PENDING);
+        }
+        mTick.clear();
+        if (!mClients.isEmpty() && !mScheduled) {
+            mScheduled = true;
+            mTicker.schedule();
+        }
+    }
+
+    private interface Ticker {
+        void schedule();
+    }
+
+    /* loaded only on API 16+ */
+    private class ChoreographerTicker implements Ticker, Choreographer.FrameCallback {
+        @Override
+        public void schedule() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            tick(frameTimeNanos / 1000000);
+        }
+    }
+
+    private class HandlerTicker implements Ticker, Runnable {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void schedule() {
+            mHandler.postDelayed(this, FRAME_DELAY);
+        }
+
+        @Override
+        public void run() {
+            tick(SystemClock.uptimeMillis());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * reference counted bitmap
+ *
+ * handle are created with one reference (owned by creator); every user of shared bitmap
+ * (cache, drawable) holds own reference; when last reference released - bitmap goes to BitmapPool
+ *
+ * in debug mode use-after-release and extra release() calls throws IllegalStateException
+ * (with stack trace of final release as cause)
+ */
+public final class BitmapHandle {
+    private static final String TAG = "BitmapHandle";
+    private static volatile boolean sDebug = false;
+
+    private final Bitmap mBitmap;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+    private volatile Throwable mReleasedAt = null;
+
+    /**
+     * @param bitmap - bitmap, owned by handle from now (must not be recycled or pooled directly)
+     */
+    public BitmapHandle(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public static void setDebug(boolean debug) { sDebug = debug; }
+
+    public static boolean isDebug() { return sDebug; }
+
+    /**
+     *
+     * @return bitmap (valid while caller holds reference)
+     */
+    public Bitmap getBitmap() {
+        if (sDebug) checkNotReleased();
+        return mBitmap;
+    }
+
+    /**
+     * add reference; caller must hold reference already (otherwise use tryAcquire())
+     */
+    public void acquire() {
+        if (!tryAcquire())
+            throw new IllegalStateException("acquire() after bitmap released", mReleasedAt);
+    }
+
+    /**
+     * add reference, if bitmap not released yet
+     * @return false if bitmap already released
+     */
+    public boolean tryAcquire() {
+        for (;;) {
+            int refs = mRefs.get();
+            if (refs <= 0) return false;
+            if (mRefs.compareAndSet(refs, refs + 1)) return true;
+        }
+    }
+
+    /**
+     * drop reference; last one returns bitmap to BitmapPool
+     */
+    public void release() {
+        for (;;) {
+            int refs = mRefs.get();
+            if (refs <= 0) {
+                if (sDebug) throw new IllegalStateException("bitmap released more times than acquired", mReleasedAt);
+                Log.w(TAG, "bitmap released more times than acquired");
+                return;
+            }
+            if (mRefs.compareAndSet(refs, refs - 1)) {
+                if (refs == 1) {
+                    if (sDebug) mReleasedAt = new Throwable("released here");
+                    BitmapPool.put(mBitmap);
+                }
+                return;
+            }
+        }
+    }
+
+    public int getRefCount() { return Math.max(0, mRefs.get()); }
+
+    public boolean isReleased() { return mRefs.get() <= 0; }
+
+    /**
+     *
+     * @return bytes, allocated by bitmap
+     */
+    public int getByteCount() {
+        return isReleased() ? 0 : MemoryLimitPool.sizeOf(mBitmap);
+    }
+
+    /**
+     * @throws IllegalStateException if bitmap already released
+     */
+    public void checkNotReleased() {
+        if (isReleased())
+            throw new IllegalStateException("use of released bitmap", mReleasedAt);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * BitmapDrawable, holding one reference of shared bitmap
+ * (released by LazyDrawable.onDrawableReleased())
+ */
+public class BitmapHandleDrawable extends BitmapDrawable {
+    private final BitmapHandle mHandle;
+
+    /**
+     * @param res
+     * @param handle - reference, owned by drawable from now
+     */
+    public BitmapHandleDrawable(Resources res, BitmapHandle handle) {
+        super(res, handle.getBitmap());
+        mHandle = handle;
+    }
+
+    public BitmapHandle getHandle() { return mHandle; }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (BitmapHandle.isDebug()) mHandle.checkNotReleased(); // drawn after release
+        super.draw(canvas);
+    }
+}
@@ -0,0 +1,47 @@
+package su.whs.images;
+
+import android.graphics.Bitmap;
+
+/**
+ * key for decoded bitmaps: source url, sample size and bitmap config
+ */
+public final class BitmapKey {
+    private final String mUrl;
+    private final int mSampleSize;
+    private final Bitmap.Config mConfig;
+
+    public BitmapKey(String url, int sampleSize, Bitmap.Config config) {
+        mUrl = url;
+        mSampleSize = sampleSize;
+        mConfig = config;
+    }
+
+    public String getUrl() { return mUrl; }
+
+    public int getSampleSize() { return mSampleSize; }
+
+    public Bitmap.Config getConfig() { return mConfig; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BitmapKey)) return false;
+        BitmapKey k = (BitmapKey) o;
+        return mSampleSize == k.mSampleSize
+                && mConfig == k.mConfig
+                && (mUrl == null ? k.mUrl == null : mUrl.equals(k.mUrl));
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mUrl == null ? 0 : mUrl.hashCode();
+        h = 31 * h + mSampleSize;
+        h = 31 * h + (mConfig == null ? 0 : mConfig.hashCode());
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return mUrl + "@" + mSampleSize + "/" + mConfig;
+    }
+}
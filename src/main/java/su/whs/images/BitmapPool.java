@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * pool of released bitmaps for reuse (BitmapFactory.Options.inBitmap, work bitmaps)
+ *
+ * reuse rules depends on API level:
+ *  - API &lt; 11: no reuse, released bitmaps are recycled
+ *  - API 11..18: only bitmap with same width, height and config, decoding without sampling
+ *  - API 19+: any bitmap with same config and enough allocated bytes (reconfigured)
+ *
+ * pool bounded by bytes, oldest bitmaps are recycled first
+ */
+public final class BitmapPool {
+    private static final ArrayList<Bitmap> sBitmaps = new ArrayList<Bitmap>();
+    private static long sMaxBytes = Runtime.getRuntime().maxMemory() / 16;
+    private static long sBytes = 0;
+
+    private BitmapPool() {}
+
+    /**
+     * set budget for pooled bitmaps (default - 1/16 of Runtime.maxMemory())
+     * @param maxBytes
+     */
+    public static synchronized void setMaxBytes(long maxBytes) {
+        sMaxBytes = maxBytes;
+        trimToSize(sMaxBytes);
+    }
+
+    public static synchronized long getMaxBytes() { return sMaxBytes; }
+
+    /**
+     *
+     * @return bytes, allocated by pooled bitmaps
+     */
+    public static synchronized long getBytes() { return sBytes; }
+
+    /**
+     * recycle oldest pooled bitmaps until pool uses no more than maxBytes (budget not changed)
+     * @param maxBytes
+     */
+    public static synchronized void trimToBytes(long maxBytes) {
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * recycle all pooled bitmaps
+     */
+    public static synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * return bitmap to pool (bitmap MUST NOT be used by caller anymore)
+     * @param bitmap
+     */
+    public static void put(Bitmap bitmap) {
+        if (bitmap==null || bitmap.isRecycled()) return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+        int size = MemoryLimitPool.sizeOf(bitmap);
+        synchronized (BitmapPool.class) {
+            if (size > sMaxBytes) {
+                bitmap.recycle();
+                return;
+            }
+            for (int i = 0; i < sBitmaps.size(); i++)
+                if (sBitmaps.get(i)==bitmap) return; // already pooled
+            sBitmaps.add(bitmap);
+            sBytes += size;
+            trimToSize(sMaxBytes);
+        }
+    }
+
+    /**
+     * mutable bitmap with given geometry (pooled or new one), erased to transparent
+     * @param width
+     * @param height
+     * @param config
+     * @return bitmap
+     */
+    public static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config, 1);
+        if (bitmap==null)
+            return Bitmap.createBitmap(width, height, config);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && (bitmap.getWidth()!=width || bitmap.getHeight()!=height))
+            bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * set options.inBitmap for decoding, if suitable bitmap pooled; must be called after
+     * inJustDecodeBounds pass and inSampleSize/inPreferredConfig set
+     * (if decoding failed - return options.inBitmap back with put())
+     * @param options
+     */
+    public static void setInBitmap(BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) return;
+        options.inMutable = true; // decoded bitmap may be reused too
+        Bitmap.Config config = options.inPreferredConfig!=null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = take(width, height, config, sampleSize);
+    }
+
+    private static Bitmap take(int width, int height, Bitmap.Config config, int sampleSize) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || width < 1 || height < 1) return null;
+        boolean kitkat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        if (!kitkat && sampleSize > 1) return null;
+        long required = (long) width * height * bytesPerPixel(config);
+        synchronized (BitmapPool.class) {
+            for (int i = 0; i < sBitmaps.size(); i++) {
+                Bitmap b = sBitmaps.get(i);
+                if (b.getConfig()!=config) continue;
+                boolean fits = kitkat ? b.getAllocationByteCount() >= required
+                        : b.getWidth()==width && b.getHeight()==height;
+                if (fits) {
+                    sBitmaps.remove(i);
+                    sBytes -= MemoryLimitPool.sizeOf(b);
+                    return b;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void trimToSize(long maxBytes) {
+        while (sBytes > maxBytes && !sBitmaps.isEmpty()) {
+            Bitmap b = sBitmaps.remove(0);
+            sBytes -= MemoryLimitPool.sizeOf(b);
+            b.recycle();
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config==Bitmap.Config.ALPHA_8) return 1;
+        if (config==Bitmap.Config.RGB_565 || config==Bitmap.Config.ARGB_4444) return 2;
+        return 4;
+    }
+}
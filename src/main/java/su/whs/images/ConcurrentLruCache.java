@@ -0,0 +1,489 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * weight-bounded cache with lock striping
+ *
+ * keys are spread over segments, every segment has own lock and access-ordered map;
+ * entries are stamped on access, eviction removes entry with oldest stamp among segment heads
+ * (exact LRU within segment, near-LRU across segments)
+ *
+ * evicted entries are reported to EvictionListener outside segment locks, by one thread at time,
+ * so listener may call back into cache
+ *
+ * with Policy.TINY_LFU new entries are inserted into small admission window (1% of max weight,
+ * but not less than two entries of average weight);
+ * entry, leaving window, stays in cache only if it was requested more often, than least recently
+ * used entry of main area (estimated by count-min sketch) - so one-hit entries do not displace
+ * popular ones
+ */
+public class ConcurrentLruCache<K,V> {
+    private static final int SEGMENTS = 16;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int WINDOW_MIN_ENTRIES = 2;
+
+    public enum Policy {
+        /** evict least recently used entry */
+        LRU,
+        /** window LRU with frequency-based admission into main area (W-TinyLFU) */
+        TINY_LFU
+    }
+
+    public interface Weigher<K,V> {
+        int weigh(K key, V value);
+    }
+
+    public interface EntryPredicate<K,V> {
+        /**
+         * called with segment lock held - must not call cache methods
+         */
+        boolean apply(K key, V value);
+    }
+
+    public interface EvictionListener<K,V> {
+        /**
+         * called without cache locks held
+         */
+        void onEvicted(K key, V value);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> sWindowUpdater = AtomicIntegerFieldUpdater.newUpdater(Node.class, "mInWindow");
+
+    private static final class Node<K,V> {
+        final K mKey;
+        final V mValue;
+        final int mWeight;
+        volatile long mStamp;
+        /* modified with segment lock held */
+        volatile boolean mRemoved = false;
+        /* 1 - in admission window (TINY_LFU) */
+        volatile int mInWindow = 0;
+
+        Node(K key, V value, int weight) {
+            mKey = key;
+            mValue = value;
+            mWeight = weight;
+        }
+
+        /**
+         * @return true if node was in window (only one caller wins)
+         */
+        boolean leaveWindow() {
+            return mInWindow==1 && sWindowUpdater.compareAndSet(this, 1, 0);
+        }
+    }
+
+    private static final class Segment<K,V> extends ReentrantLock {
+        final LinkedHashMap<K,Node<K,V>> mMap = new LinkedHashMap<K, Node<K,V>>(16, 0.75f, true);
+
+        /* must be called with lock held */
+        Node<K,V> eldest(boolean mainOnly) {
+            for (Node<K,V> node : mMap.values())
+                if (!mainOnly || node.mInWindow==0) return node;
+            return null;
+        }
+    }
+
+    private final Segment<K,V>[] mSegments;
+    private final Weigher<K,V> mWeigher;
+    private final EvictionListener<K,V> mListener;
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mWeight = new AtomicLong();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Node<K,V>> mEvicted = new ConcurrentLinkedQueue<Node<K,V>>();
+    private final AtomicBoolean mDelivering = new AtomicBoolean(false);
+    private volatile long mMaxWeight;
+    private volatile Policy mPolicy = Policy.LRU;
+    private final FrequencySketch mSketch = new FrequencySketch(256);
+    private final ConcurrentLinkedQueue<Node<K,V>> mWindow = new ConcurrentLinkedQueue<Node<K,V>>();
+    private final AtomicLong mWindowWeight = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * @param maxWeight - max sum of entries weights
+     * @param weigher - entry weight (bytes), null - every entry weights 1
+     * @param listener - receives evicted entries, may be null
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(long maxWeight, Weigher<K,V> weigher, EvictionListener<K,V> listener) {
+        mMaxWeight = maxWeight;
+        mWeigher = weigher;
+        mListener = listener;
+        mSegments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            mSegments[i] = new Segment<K,V>();
+    }
+
+    private Segment<K,V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @param key
+     * @return cached value (entry marked as recently used), or null
+     */
+    public V get(K key) {
+        return get(key, true);
+    }
+
+    /**
+     * lookup, which does not count miss (for speculative lookups, followed by get() on miss)
+     * @param key
+     * @return cached value (entry marked as recently used), or null
+     */
+    public V probe(K key) {
+        return get(key, false);
+    }
+
+    private V get(K key, boolean recordMiss) {
+        Node<K,V> node;
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            node = segment.mMap.get(key);
+            if (node!=null)
+                node.mStamp = mClock.incrementAndGet();
+        } finally {
+            segment.unlock();
+        }
+        if (node==null && !recordMiss) return null;
+        if (mPolicy==Policy.TINY_LFU)
+            mSketch.increment(key.hashCode()); // misses are counted too - key may be admitted next time
+        if (node==null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return node.mValue;
+    }
+
+    public boolean containsKey(K key) {
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            return segment.mMap.containsKey(key);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * insert or replace entry (as most recently used); replaced value are not reported to listener
+     * @param key
+     * @param value
+     * @return replaced value, or null
+     */
+    public V put(K key, V value) {
+        int weight = mWeigher==null ? 1 : mWeigher.weigh(key, value);
+        Node<K,V> node = new Node<K,V>(key, value, weight);
+        boolean window = mPolicy==Policy.TINY_LFU;
+        if (window)
+            node.mInWindow = 1; // popularity counted by get() (miss preceded put)
+        Node<K,V> old;
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            node.mStamp = mClock.incrementAndGet();
+            old = segment.mMap.put(key, node);
+            if (old!=null) old.mRemoved = true;
+        } finally {
+            segment.unlock();
+        }
+        mWeight.addAndGet(weight);
+        mSize.incrementAndGet();
+        if (window) {
+            mWindowWeight.addAndGet(weight);
+            mWindow.add(node);
+            mSketch.ensureCapacity(mSize.get());
+        }
+        if (old!=null) unlinked(old);
+        evict(mMaxWeight, Integer.MAX_VALUE);
+        return old==null ? null : old.mValue;
+    }
+
+    /**
+     * remove entry (not reported to listener)
+     * @param key
+     * @return removed value, or null
+     */
+    public V remove(K key) {
+        Node<K,V> node;
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock();
+        try {
+            node = segment.mMap.remove(key);
+            if (node!=null) node.mRemoved = true;
+        } finally {
+            segment.unlock();
+        }
+        if (node==null) return null;
+        unlinked(node);
+        return node.mValue;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        mMaxWeight = maxWeight;
+        evict(maxWeight, Integer.MAX_VALUE);
+    }
+
+    public long getMaxWeight() { return mMaxWeight; }
+
+    public long getWeight() { return mWeight.get(); }
+
+    public int size() { return mSize.get(); }
+
+    /**
+     * select eviction policy (entries already in cache are treated as main area entries)
+     * @param policy
+     */
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() { return mPolicy; }
+
+    /**
+     *
+     * @return number of get() calls, returned value
+     */
+    public long getHitCount() { return mHits.get(); }
+
+    /**
+     *
+     * @return number of get() calls, returned null
+     */
+    public long getMissCount() { return mMisses.get(); }
+
+    /**
+     *
+     * @return hits / requests, or 0 if no requests
+     */
+    public float getHitRate() {
+        long hits = mHits.get();
+        long requests = hits + mMisses.get();
+        return requests==0 ? 0f : (float) hits / requests;
+    }
+
+    /**
+     *
+     * @return number of evicted (and rejected by admission) entries
+     */
+    public long getEvictionCount() { return mEvictions.get(); }
+
+    public void resetStats() {
+        mHits.set(0);
+        mMisses.set(0);
+        mEvictions.set(0);
+    }
+
+    /**
+     * evict least recently used entries until cache weight not exceeds maxWeight
+     * (most recently used entry are kept, unless maxWeight == 0)
+     * @param maxWeight
+     */
+    public void trimToWeight(long maxWeight) {
+        evict(maxWeight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * evict least recently used entries until cache has no more than maxSize entries
+     * @param maxSize
+     */
+    public void trimToSize(int maxSize) {
+        evict(Long.MAX_VALUE, maxSize);
+    }
+
+    /**
+     * @param predicate
+     * @return true if any entry matches predicate (entries are not touched)
+     */
+    public boolean anyMatch(EntryPredicate<K,V> predicate) {
+        for (Segment<K,V> segment : mSegments) {
+            segment.lock();
+            try {
+                for (Node<K,V> node : segment.mMap.values())
+                    if (predicate.apply(node.mKey, node.mValue)) return true;
+            } finally {
+                segment.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * evict all entries, matching predicate (reported to listener)
+     * @param predicate
+     * @return number of evicted entries
+     */
+    public int evictIf(EntryPredicate<K,V> predicate) {
+        int count = 0;
+        for (Segment<K,V> segment : mSegments) {
+            ArrayList<Node<K,V>> removed = null;
+            segment.lock();
+            try {
+                Iterator<Node<K,V>> it = segment.mMap.values().iterator();
+                while (it.hasNext()) {
+                    Node<K,V> node = it.next();
+                    if (!predicate.apply(node.mKey, node.mValue)) continue;
+                    it.remove();
+                    node.mRemoved = true;
+                    if (removed==null) removed = new ArrayList<Node<K,V>>();
+                    removed.add(node);
+                }
+            } finally {
+                segment.unlock();
+            }
+            if (removed==null) continue;
+            for (Node<K,V> node : removed) {
+                unlinked(node);
+                mEvictions.incrementAndGet();
+                mEvicted.add(node);
+            }
+            count += removed.size();
+        }
+        deliverEvicted();
+        return count;
+    }
+
+    private void evict(long maxWeight, int maxSize) {
+        int keep = maxWeight > 0 && maxSize > 0 ? 1 : 0;
+        while ((mWeight.get() > maxWeight || mSize.get() > maxSize) && mSize.get() > keep) {
+            Node<K,V> victim = mPolicy==Policy.TINY_LFU ? selectTinyLfuVictim(maxWeight) : eldest(false);
+            if (victim==null) break;
+            long stamp = victim.mStamp;
+            boolean removed = false;
+            Segment<K,V> segment = segmentFor(victim.mKey);
+            segment.lock();
+            try {
+                // entry may be accessed or removed since scan
+                if (!victim.mRemoved && victim.mStamp==stamp) {
+                    segment.mMap.remove(victim.mKey);
+                    victim.mRemoved = true;
+                    removed = true;
+                }
+            } finally {
+                segment.unlock();
+            }
+            if (removed) {
+                unlinked(victim);
+                mEvictions.incrementAndGet();
+                mEvicted.add(victim);
+            }
+        }
+        deliverEvicted();
+    }
+
+    /**
+     * least recently used entry among segment heads
+     * @param mainOnly - skip entries in admission window
+     */
+    private Node<K,V> eldest(boolean mainOnly) {
+        Node<K,V> victim = null;
+        for (Segment<K,V> segment : mSegments) {
+            segment.lock();
+            try {
+                Node<K,V> eldest = segment.eldest(mainOnly);
+                if (eldest!=null && (victim==null || eldest.mStamp < victim.mStamp))
+                    victim = eldest;
+            } finally {
+                segment.unlock();
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * W-TinyLFU: while window are over its budget, oldest window entry (candidate) leaves window
+     * and competes with LRU entry of main area - less frequently used one are evicted
+     */
+    private Node<K,V> selectTinyLfuVictim(long maxWeight) {
+        long windowMax = windowMaxWeight(maxWeight);
+        for (;;) {
+            Node<K,V> victim = eldest(true);
+            if (victim!=null && mWindowWeight.get() <= windowMax) return victim;
+            Node<K,V> candidate = pollWindow();
+            if (candidate==null) return victim!=null ? victim : eldest(false);
+            if (victim==null) continue; // candidate moved to empty main area
+            return mSketch.frequency(candidate.mKey.hashCode()) > mSketch.frequency(victim.mKey.hashCode()) ? victim : candidate;
+        }
+    }
+
+    /**
+     * window must hold new entry until it is requested again: with large entries (decoded images)
+     * percent of max weight may be smaller than one entry
+     */
+    private long windowMaxWeight(long maxWeight) {
+        int size = mSize.get();
+        long average = size > 0 ? mWeight.get() / size : 1;
+        long windowMax = Math.max(maxWeight / 100 * WINDOW_PERCENT, average * WINDOW_MIN_ENTRIES);
+        return Math.max(1, Math.min(windowMax, maxWeight / 2));
+    }
+
+    /**
+     * @return oldest node, moved from window to main area, or null if window empty
+     */
+    private Node<K,V> pollWindow() {
+        Node<K,V> node;
+        while ((node = mWindow.poll())!=null) {
+            if (node.leaveWindow()) {
+                mWindowWeight.addAndGet(-node.mWeight);
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /* accounting for node, removed from segment map */
+    private void unlinked(Node<K,V> node) {
+        mWeight.addAndGet(-node.mWeight);
+        mSize.decrementAndGet();
+        if (node.leaveWindow()) {
+            mWindowWeight.addAndGet(-node.mWeight);
+            mWindow.remove(node); // do not hold value (window are small)
+        }
+    }
+
+    private void deliverEvicted() {
+        if (mListener==null) {
+            mEvicted.clear();
+            return;
+        }
+        while (!mEvicted.isEmpty() && mDelivering.compareAndSet(false, true)) {
+            try {
+                Node<K,V> node;
+                while ((node = mEvicted.poll())!=null)
+                    mListener.onEvicted(node.mKey, node.mValue);
+            } finally {
+                mDelivering.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package su.whs.images;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * decode stage of loading pipeline
+ *
+ * loader (I/O) threads fetch encoded bytes with {@link #readBytes(InputStream)},
+ * then hand them off to decode pool, sized to number of CPU cores;
+ * hand-off buffer are bounded - when decode pool are busy, I/O threads wait for free slot
+ *
+ * NOTE: stage bounds decode concurrency only, it is not a pipeline - loader thread waits for
+ * decode result ({@link #decode(Callable, LoadCancellation)} is synchronous), so fetch and decode
+ * of one load are serialized on its loader thread, and loads in flight are still bounded by
+ * loader threads (see LoaderPool)
+ */
+public final class DecodeStage {
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int HANDOFF_CAPACITY = THREADS * 2;
+    private static final Semaphore sSlots = new Semaphore(THREADS + HANDOFF_CAPACITY);
+    private static ThreadPoolExecutor sExecutor = null;
+
+    private DecodeStage() {}
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor==null || sExecutor.isShutdown()) {
+            sExecutor = new ThreadPoolExecutor(THREADS, THREADS, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * I/O stage: read stream to the end
+     * @param is - input stream (not closed by this method)
+     * @return encoded bytes
+     * @throws IOException
+     */
+    public static byte[] readBytes(InputStream is) throws IOException {
+        return ByteStreams.toByteArray(is);
+    }
+
+    /**
+     * run decode task on decode pool and wait for result
+     * @param task - cpu-bound decode task
+     * @return result of task
+     * @throws IOException if task throws IOException, or waiting are interrupted
+     */
+    public static <T> T decode(Callable<T> task) throws IOException {
+        return decode(task, null);
+    }
+
+    /**
+     * run decode task on decode pool and wait for result
+     *
+     * task, cancelled before start, are removed from decode queue; running task are not abandoned -
+     * it must stop by itself (for example, by BitmapFactory.Options.requestCancelDecode()), and its
+     * result (if any) returned to caller, which must cache or recycle it
+     * @param task - cpu-bound decode task
+     * @param cancellation - load cancellation (may be null)
+     * @return result of task
+     * @throws IOException if task throws IOException, or cancelled before start
+     */
+    public static <T> T decode(final Callable<T> task, LoadCancellation cancellation) throws IOException {
+        try {
+            if (cancellation==null) {
+                sSlots.acquire();
+            } else {
+                while (!sSlots.tryAcquire(50, TimeUnit.MILLISECONDS))
+                    cancellation.throwIfCancelled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for decode slot");
+        }
+        /* set by decode thread (task started) or by canceller (task dropped), whichever first */
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        final FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) return null; // dropped, slot released by canceller
+                try {
+                    return task.call();
+                } finally {
+                    sSlots.release();
+                }
+            }
+        });
+        try {
+            getExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            sSlots.release();
+            throw new IOException("decode stage rejected task");
+        }
+        LoadCancellation.OnCancelListener listener = null;
+        if (cancellation!=null) {
+            listener = new LoadCancellation.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    drop(future, claimed);
+                }
+            };
+            cancellation.register(listener);
+        }
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    if (drop(future, claimed))
+                        throw new InterruptedIOException("interrupted while waiting for decode");
+                    interrupted = true; // running - wait for result, it must not be lost
+                }
+            }
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("decode cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(String.valueOf(cause));
+        } finally {
+            if (listener!=null)
+                cancellation.unregister(listener);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * remove task from decode queue, if it not started yet
+     * @return true if task dropped
+     */
+    private static boolean drop(FutureTask<?> future, AtomicBoolean claimed) {
+        if (!claimed.compareAndSet(false, true)) return false; // already running
+        future.cancel(false);
+        getExecutor().remove(future);
+        sSlots.release();
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.graphics.Bitmap;
+
+/**
+ * decoded bitmap (shared by handle) with geometry of source image (before sampling)
+ */
+public final class DecodedImage {
+    private final BitmapHandle mHandle;
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * @param handle
+     * @param width - source image width
+     * @param height - source image height
+     */
+    public DecodedImage(BitmapHandle handle, int width, int height) {
+        mHandle = handle;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public BitmapHandle getHandle() { return mHandle; }
+
+    public Bitmap getBitmap() { return mHandle.getBitmap(); }
+
+    /**
+     *
+     * @return source image width
+     */
+    public int getWidth() { return mWidth; }
+
+    /**
+     *
+     * @return source image height
+     */
+    public int getHeight() { return mHeight; }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+/**
+ * process-wide memory cache of decoded images, keyed by source url, sample size and config
+ *
+ * cache holds one reference of every cached bitmap handle, each lookup hit acquires one more
+ * for caller; bitmap goes to BitmapPool when evicted and released by all drawables
+ */
+public final class DecodedImageCache {
+    /* default budget: part of heap for decoded images */
+    private static final int DEFAULT_HEAP_DIVIDER = 8;
+
+    private static final ConcurrentLruCache<BitmapKey,DecodedImage> sCache = new ConcurrentLruCache<BitmapKey, DecodedImage>(
+            Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVIDER,
+            new ConcurrentLruCache.Weigher<BitmapKey, DecodedImage>() {
+                @Override
+                public int weigh(BitmapKey key, DecodedImage value) {
+                    return value.getHandle().getByteCount();
+                }
+            },
+            new ConcurrentLruCache.EvictionListener<BitmapKey, DecodedImage>() {
+                @Override
+                public void onEvicted(BitmapKey key, DecodedImage value) {
+                    value.getHandle().release();
+                }
+            });
+
+    private DecodedImageCache() {}
+
+    /**
+     * @param key
+     * @return cached image, acquired for caller (release handle, when not used), or null
+     */
+    public static DecodedImage get(BitmapKey key) {
+        return acquired(sCache.get(key));
+    }
+
+    /**
+     * same as get(), but miss is not counted (lookup from UI thread, followed by load on miss)
+     * @param key
+     * @return cached image, or null
+     */
+    public static DecodedImage probe(BitmapKey key) {
+        return acquired(sCache.probe(key));
+    }
+
+    /* entry may be evicted (and released) concurrently with lookup */
+    private static DecodedImage acquired(DecodedImage image) {
+        return image!=null && image.getHandle().tryAcquire() ? image : null;
+    }
+
+    /**
+     * cache image; cache acquires own reference (caller's reference not changed)
+     * @param key
+     * @param image
+     */
+    public static void put(BitmapKey key, DecodedImage image) {
+        if (image==null || !image.getHandle().tryAcquire()) return;
+        DecodedImage old = sCache.put(key, image);
+        if (old!=null) old.getHandle().release();
+    }
+
+    public static void remove(BitmapKey key) {
+        DecodedImage old = sCache.remove(key);
+        if (old!=null) old.getHandle().release();
+    }
+
+    /**
+     * set budget for cached images (default - 1/8 of Runtime.maxMemory())
+     * @param maxBytes
+     */
+    public static void setMaxBytes(long maxBytes) {
+        sCache.setMaxWeight(maxBytes);
+    }
+
+    public static long getMaxBytes() { return sCache.getMaxWeight(); }
+
+    public static long getBytes() { return sCache.getWeight(); }
+
+    /**
+     * select eviction policy: LRU (default), or TINY_LFU - frequency-based admission,
+     * keeps often used images (avatars, emoji) while one-off images passes through cache
+     * @param policy
+     */
+    public static void setPolicy(ConcurrentLruCache.Policy policy) {
+        sCache.setPolicy(policy);
+    }
+
+    public static ConcurrentLruCache.Policy getPolicy() { return sCache.getPolicy(); }
+
+    public static long getHitCount() { return sCache.getHitCount(); }
+
+    public static long getMissCount() { return sCache.getMissCount(); }
+
+    /**
+     *
+     * @return hits / lookups since start (or last resetStats())
+     */
+    public static float getHitRate() { return sCache.getHitRate(); }
+
+    public static long getEvictionCount() { return sCache.getEvictionCount(); }
+
+    public static void resetStats() { sCache.resetStats(); }
+
+    /**
+     * evict least recently used images until cache uses no more than maxBytes (budget not changed)
+     * @param maxBytes
+     */
+    public static void trimToBytes(long maxBytes) {
+        sCache.trimToWeight(maxBytes);
+    }
+
+    /**
+     * evict images, not used by any drawable (referenced only by cache)
+     */
+    public static void trimUnused() {
+        sCache.evictIf(new ConcurrentLruCache.EntryPredicate<BitmapKey, DecodedImage>() {
+            @Override
+            public boolean apply(BitmapKey key, DecodedImage value) {
+                return value.getHandle().getRefCount() <= 1;
+            }
+        });
+    }
+
+    public static void clear() {
+        sCache.trimToWeight(0);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import java.nio.ByteBuffer;
+
+/**
+ * process-wide memory cache of encoded images (jpeg/png/gif bytes), keyed by url
+ *
+ * bytes are kept in java heap (direct ByteBuffers are heap-backed on Android too, so there is
+ * no cheaper storage), budget are sized together with other image budgets; encoded image usually
+ * 10-20 times smaller, than decoded one, so evicted drawables may be decoded again without fetch
+ */
+public final class EncodedImageCache {
+    /* default budget, relative to heap size (MemoryBudget 1/8, DecodedImageCache 1/8, BitmapPool 1/16) */
+    private static final int DEFAULT_HEAP_DIVIDER = 32;
+
+    private static final ConcurrentLruCache<String,ByteBuffer> sCache = new ConcurrentLruCache<String, ByteBuffer>(
+            Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVIDER,
+            new ConcurrentLruCache.Weigher<String, ByteBuffer>() {
+                @Override
+                public int weigh(String key, ByteBuffer value) {
+                    return value.capacity();
+                }
+            }, null);
+
+    private EncodedImageCache() {}
+
+    /**
+     * @param url
+     * @return view of cached bytes (own position, array accessible for decoding; must not be modified), or null
+     */
+    public static ByteBuffer get(String url) {
+        ByteBuffer buffer = sCache.get(url);
+        return buffer==null ? null : buffer.duplicate();
+    }
+
+    /**
+     * cache bytes (array are not copied - caller must not modify it; images, bigger than budget, are not cached)
+     * @param url
+     * @param data - encoded image
+     * @return view of cached bytes, or data wrapped (if not cached)
+     */
+    public static ByteBuffer put(String url, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length==0 || data.length > sCache.getMaxWeight())
+            return buffer;
+        sCache.put(url, buffer);
+        return buffer.duplicate();
+    }
+
+    public static void remove(String url) {
+        sCache.remove(url);
+    }
+
+    /**
+     * set budget for encoded images (default - 1/32 of Runtime.maxMemory())
+     * @param maxBytes
+     */
+    public static void setMaxBytes(long maxBytes) {
+        sCache.setMaxWeight(maxBytes);
+    }
+
+    public static long getMaxBytes() { return sCache.getMaxWeight(); }
+
+    public static long getBytes() { return sCache.getWeight(); }
+
+    public static float getHitRate() { return sCache.getHitRate(); }
+
+    /**
+     * evict least recently used images until cache uses no more than maxBytes (budget not changed)
+     * @param maxBytes
+     */
+    public static void trimToBytes(long maxBytes) {
+        sCache.trimToWeight(maxBytes);
+    }
+
+    public static void clear() {
+        sCache.trimToWeight(0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * count-min sketch with 4-bit counters (popularity of keys for TinyLFU admission)
+ *
+ * every long holds 16 counters, key are counted in 4 rows (min is estimation);
+ * after 10 * table length increments all counters are halved, so old popularity fades out
+ *
+ * lock-free; concurrent increments may be lost, that is acceptable for estimation
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private volatile AtomicLongArray mTable;
+    private final AtomicInteger mAdditions = new AtomicInteger();
+
+    /**
+     * @param expectedSize - expected number of cached entries
+     */
+    FrequencySketch(int expectedSize) {
+        mTable = new AtomicLongArray(tableSize(expectedSize));
+    }
+
+    private static int tableSize(int expectedSize) {
+        int size = 64;
+        while (size < expectedSize && size < (1 << 24))
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * grow table if cache holds more entries than table sized for; counters are kept
+     * (row index are hash masked by table length, so every new slot inherits slot with same low bits)
+     * @param size - number of cached entries
+     */
+    void ensureCapacity(int size) {
+        AtomicLongArray table = mTable;
+        if (size <= table.length() || table.length() >= (1 << 24)) return;
+        synchronized (this) {
+            table = mTable;
+            if (size <= table.length()) return; // grown by another thread
+            int mask = table.length() - 1;
+            AtomicLongArray grown = new AtomicLongArray(tableSize(size));
+            for (int i = 0; i < grown.length(); i++)
+                grown.set(i, table.get(i & mask)); // increments, racing with copy, may be lost
+            mTable = grown;
+        }
+    }
+
+    /**
+     * @param hash - key hash
+     * @return estimated number of accesses (0..15)
+     */
+    int frequency(int hash) {
+        AtomicLongArray table = mTable;
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(table, h, i);
+            int offset = (start + i) << 2;
+            frequency = Math.min(frequency, (int) ((table.get(index) >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * count access to key
+     * @param hash - key hash
+     */
+    void increment(int hash) {
+        AtomicLongArray table = mTable;
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(table, indexOf(table, h, i), (start + i) << 2);
+        if (added && mAdditions.incrementAndGet() >= table.length() * 10)
+            reset(table);
+    }
+
+    private static boolean incrementAt(AtomicLongArray table, int index, int offset) {
+        long mask = 0xfL << offset;
+        for (;;) {
+            long value = table.get(index);
+            if ((value & mask) == mask) return false; // saturated
+            if (table.compareAndSet(index, value, value + (1L << offset))) return true;
+        }
+    }
+
+    /* halve all counters (aging) */
+    private void reset(AtomicLongArray table) {
+        mAdditions.set(0);
+        for (int i = 0; i < table.length(); i++) {
+            for (;;) {
+                long value = table.get(i);
+                if (table.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) break;
+            }
+        }
+    }
+
+    private static int indexOf(AtomicLongArray table, int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (table.length() - 1);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -65,6 +65,10 @@ public class GifDecoder {
      * File read status: Unable to open source.
      */
     public static final int STATUS_OPEN_ERROR = 2;
+    /**
+     * File read status: decoding cancelled with {@link #cancel()}
+     */
+    public static final int STATUS_CANCELLED = 3;
     /**
      * max decoder pixel stack size
      */
@@ -127,8 +131,59 @@ public class GifDecoder {
     protected int framePointer;
     protected int frameCount;
 
+    private volatile boolean cancelled = false;
+
+    /**
+     * stop reading/decoding at next data block boundary (may be called from any thread)
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * return work bitmaps to BitmapPool (decoder can't produce frames after this call)
+     * @param keepCurrentFrame - true if bitmap, returned by getNextFrame(), still used by caller
+     */
+    public void recycle(boolean keepCurrentFrame) {
+        if (previousImage!=currentImage) BitmapPool.put(previousImage);
+        if (!keepCurrentFrame) BitmapPool.put(currentImage);
+        previousImage = null;
+        currentImage = null;
+    }
+
+    /**
+     * free LZW and scratch buffers (reallocated on next frame); call for stopped animation
+     */
+    public void trimMemory() {
+        prefix = null;
+        suffix = null;
+        pixelStack = null;
+        mainPixels = null;
+        mainScratch = null;
+        copyScratch = null;
+    }
+
+    /**
+     *
+     * @return heap memory, used by decoder: raw data, LZW and scratch buffers,
+     *   work bitmaps (except current frame, returned by getNextFrame())
+     */
     public int getByteCount() {
-        return rawData==null ? 0 : rawData.array().length;
+        int size = rawData==null ? 0 : rawData.capacity(); // direct buffers are heap-backed too
+        size += block.length;
+        if (prefix!=null) size += prefix.length * 2;
+        if (suffix!=null) size += suffix.length;
+        if (pixelStack!=null) size += pixelStack.length;
+        if (mainPixels!=null) size += mainPixels.length;
+        if (mainScratch!=null) size += mainScratch.length * 4;
+        if (copyScratch!=null) size += copyScratch.length * 4;
+        if (previousImage!=currentImage) size += MemoryLimitPool.sizeOf(previousImage);
+        if (renderImage!=currentImage) size += MemoryLimitPool.sizeOf(renderImage);
+        return size;
     }
 
     /**
@@ -268,11 +323,15 @@ public class GifDecoder {
                 int nRead;
                 byte[] data = new byte[16384];
                 while ((nRead = is.read(data, 0, data.length)) != -1) {
+                    if (cancelled) break;
                     buffer.write(data, 0, nRead);
                 }
                 buffer.flush();
 
-                read(buffer.toByteArray());
+                if (cancelled)
+                    status = STATUS_CANCELLED;
+                else
+                    read(buffer.toByteArray());
             } catch (IOException e) {
                 Log.w(TAG, "Error reading data from stream", e);
             }
@@ -296,10 +355,20 @@ public class GifDecoder {
      * @return read status code (0 = no errors)
      */
     public int read(byte[] data) {
+        return read(data == null ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Reads GIF image from buffer (buffer are used as is, without copying)
+     *
+     * @param data containing GIF file (from position 0 to limit), not modified.
+     * @return read status code (0 = no errors)
+     */
+    public int read(ByteBuffer data) {
         init();
         if (data != null) {
             //Initiliaze the raw data buffer
-            rawData = ByteBuffer.wrap(data);
+            rawData = data.duplicate();
             rawData.rewind();
             rawData.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -328,6 +397,12 @@ public class GifDecoder {
             previousFrame = frames.get(previousIndex);
         }
 
+        if (mainPixels == null) { // released by trimMemory()
+            mainPixels = new byte[width * height];
+            mainScratch = new int[width * height];
+            copyScratch = new int[width * height];
+        }
+
         // final location of blended pixels
         final int[] dest = mainScratch;
 
@@ -571,6 +646,11 @@ public class GifDecoder {
      * @return number of bytes stored in "buffer"
      */
     protected int readBlock() {
+        if (cancelled) {
+            status = STATUS_CANCELLED;
+            blockSize = 0;
+            return 0;
+        }
         blockSize = read();
         int n = 0;
         if (blockSize > 0) {
@@ -764,8 +844,8 @@ public class GifDecoder {
         mainScratch = new int[width * height];
         copyScratch = new int[width * height];
 
-        previousImage = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        currentImage = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        previousImage = BitmapPool.obtain(width, height, Bitmap.Config.RGB_565);
+        currentImage = BitmapPool.obtain(width, height, Bitmap.Config.RGB_565);
     }
 
     /**
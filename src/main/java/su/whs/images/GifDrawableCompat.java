@@ -22,11 +22,12 @@ import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
-import android.os.Build;
-import android.os.SystemClock;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 
 /**
@@ -34,24 +35,54 @@ import java.io.InputStream;
  */
 
 public class GifDrawableCompat extends Drawable implements Animatable {
+    /* live drawables, for trimMemory() */
+    private static final Set<GifDrawableCompat> sInstances = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<GifDrawableCompat, Boolean>()));
     private GifDecoder mDecoder;
     private Bitmap mFrame;
-    private boolean mStarted = false;
+    private volatile boolean mStarted = false;
     private Paint mPaint = new Paint();
     private Rect mSrcRect = new Rect();
+    private long mNextFrameTime = 0;
 
-    private Runnable updateRunable = new Runnable() {
+    /* frames are advanced by shared clock, while drawable are drawn */
+    private final AnimationClock.Client mPlayback = new AnimationClock.Client() {
         @Override
-        public void run() {
+        public int onFrame(long frameTime) {
+            if (!mStarted || mDecoder==null) return AnimationClock.STOP;
+            if (frameTime < mNextFrameTime) return AnimationClock.IDLE; // current frame still shown
             nextFrame();
-            if (mStarted)
-                scheduleSelf(updateRunable, SystemClock.uptimeMillis()+mDecoder.getNextDelay());
+            int delay = mDecoder.getNextDelay();
+            // do not try to catch up after pause (drawable was off-screen)
+            mNextFrameTime = Math.max(mNextFrameTime + delay, frameTime + delay / 2);
+            return AnimationClock.INVALIDATED;
         }
     };
 
     public GifDrawableCompat(InputStream inputStream) throws IOException {
         mDecoder = new GifDecoder();
         mDecoder.read(inputStream,0);
+        init();
+    }
+
+    /**
+     * @param decoder - decoder with already read gif data
+     */
+    public GifDrawableCompat(GifDecoder decoder) {
+        mDecoder = decoder;
+        init();
+    }
+
+    /**
+     * @param data - encoded gif
+     */
+    public GifDrawableCompat(byte[] data) {
+        mDecoder = new GifDecoder();
+        mDecoder.read(data);
+        init();
+    }
+
+    private void init() {
+        sInstances.add(this);
         mDecoder.advance();
         mFrame = mDecoder.getNextFrame();
         mSrcRect.set(0,0,mFrame.getWidth(),mFrame.getHeight());
@@ -72,14 +103,15 @@ public class GifDrawableCompat extends Drawable implements Animatable {
 
     @Override
     public void start() {
+        if (mStarted || mDecoder==null) return;
         mStarted = true;
-        scheduleSelf(updateRunable, SystemClock.uptimeMillis() + mDecoder.getNextDelay());
+        mNextFrameTime = AnimationClock.getInstance().getFrameTime() + mDecoder.getNextDelay();
+        invalidateSelf(); // registers with clock on draw
     }
 
     @Override
     public void stop() {
-        unscheduleSelf(updateRunable);
-        mStarted = false;
+        mStarted = false; // may be called from loader thread - clock drops playback on next tick
     }
 
     @Override
@@ -89,7 +121,11 @@ public class GifDrawableCompat extends Drawable implements Animatable {
 
     @Override
     public void draw(Canvas canvas) {
-        canvas.drawBitmap(mFrame,mSrcRect,getBounds(),mPaint);
+        Bitmap frame = mFrame;
+        if (frame==null) return; // released
+        canvas.drawBitmap(frame,mSrcRect,getBounds(),mPaint);
+        if (mStarted)
+            AnimationClock.getInstance().register(mPlayback);
     }
 
     @Override
@@ -108,22 +144,43 @@ public class GifDrawableCompat extends Drawable implements Animatable {
     }
 
     public void release() {
-        if (mStarted) {
-            mStarted = false;
-            unscheduleSelf(updateRunable);
-        }
+        mStarted = false;
+        sInstances.remove(this);
+        GifDecoder decoder = mDecoder;
         mDecoder = null;
+        mFrame = null;
+        if (decoder!=null) decoder.recycle(false);
     }
 
+    /**
+     * free decoder buffers, if animation stopped (current frame still drawn)
+     * must be called from UI thread
+     */
+    public void trimMemory() {
+        GifDecoder decoder = mDecoder;
+        if (!mStarted && decoder!=null) decoder.trimMemory();
+    }
 
-    public int getAllocationByteCount() {
-        int size = 0;
-        if (mFrame!=null) if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-            size += mFrame.getByteCount();
-        } else {
-            size += mFrame.getWidth() * mFrame.getHeight() * 3;
+    /**
+     * free decoder buffers of all stopped gif drawables (UI thread)
+     */
+    public static void trimMemoryAll() {
+        GifDrawableCompat[] drawables;
+        synchronized (sInstances) {
+            drawables = sInstances.toArray(new GifDrawableCompat[sInstances.size()]);
         }
-        return size + (mDecoder == null ? 0 : mDecoder.getByteCount());
+        for (GifDrawableCompat d : drawables)
+            d.trimMemory();
+    }
+
+
+    /**
+     *
+     * @return memory, allocated by current frame and decoder buffers
+     */
+    public int getAllocationByteCount() {
+        GifDecoder decoder = mDecoder;
+        return MemoryLimitPool.sizeOf(mFrame) + (decoder == null ? 0 : decoder.getByteCount());
     }
 
     public Bitmap getBitmap() {
@@ -0,0 +1,147 @@
+package su.whs.images;
+
+import android.graphics.BitmapFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cancellation of running load
+ *
+ * loader attaches instance to own thread, so readDrawable() implementations may register
+ * streams, BitmapFactory.Options and decoders to abort, when load cancelled
+ */
+public final class LoadCancellation {
+
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private static final ThreadLocal<LoadCancellation> sCurrent = new ThreadLocal<LoadCancellation>();
+    private final ArrayList<OnCancelListener> mListeners = new ArrayList<OnCancelListener>();
+    private volatile boolean mCancelled = false;
+    private static ThreadPoolExecutor sCloser = null;
+
+    /* cancel() usually called from UI thread, but close() of network stream may block */
+    private static synchronized ThreadPoolExecutor getCloser() {
+        if (sCloser==null || sCloser.isShutdown()) {
+            sCloser = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sCloser.allowCoreThreadTimeOut(true);
+        }
+        return sCloser;
+    }
+
+    /**
+     *
+     * @return cancellation attached to current thread, or null
+     */
+    public static LoadCancellation current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * attach to current thread
+     */
+    public void attach() {
+        sCurrent.set(this);
+    }
+
+    /**
+     * detach from current thread
+     */
+    public void detach() {
+        if (sCurrent.get()==this)
+            sCurrent.remove();
+    }
+
+    /**
+     * cancel load and notify registered listeners (on calling thread)
+     */
+    public void cancel() {
+        OnCancelListener[] listeners;
+        synchronized (mListeners) {
+            if (mCancelled) return;
+            mCancelled = true;
+            listeners = mListeners.toArray(new OnCancelListener[mListeners.size()]);
+            mListeners.clear();
+        }
+        for (OnCancelListener l : listeners)
+            l.onCancel();
+    }
+
+    public boolean isCancelled() { return mCancelled; }
+
+    /**
+     * @throws InterruptedIOException if load cancelled
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (mCancelled) throw new InterruptedIOException("load cancelled");
+    }
+
+    /**
+     * register listener (called immediately, if load already cancelled)
+     * @param listener
+     */
+    public void register(OnCancelListener listener) {
+        synchronized (mListeners) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    public void unregister(OnCancelListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * close stream on cancel (blocked read will fail)
+     * close() performed on background thread, not on thread called cancel()
+     * @param closeable
+     * @return registered listener
+     */
+    public OnCancelListener register(final Closeable closeable) {
+        OnCancelListener l = new OnCancelListener() {
+            @Override
+            public void onCancel() {
+                getCloser().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            closeable.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                });
+            }
+        };
+        register(l);
+        return l;
+    }
+
+    /**
+     * request cancel of BitmapFactory decode on cancel
+     * @param options
+     * @return registered listener
+     */
+    public OnCancelListener register(final BitmapFactory.Options options) {
+        OnCancelListener l = new OnCancelListener() {
+            @Override
+            public void onCancel() {
+                options.requestCancelDecode();
+            }
+        };
+        register(l);
+        return l;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import su.whs.wlazydrawable.LazyDrawable;
+
+/**
+ * process-wide budget for loaded drawables, shared by all MemoryLimitPool instances
+ *
+ * every pool has sub-budget (share of global budget, proportional to pool weight); when total
+ * exceeds global budget, pools over their share are trimmed first, then any pools -
+ * least recently used (coldest) pool first
+ */
+public final class MemoryBudget {
+    private static final String TAG = "MemoryBudget";
+    private static final ArrayList<WeakReference<MemoryLimitPool>> sPools = new ArrayList<WeakReference<MemoryLimitPool>>();
+    private static final AtomicBoolean sReclaiming = new AtomicBoolean(false);
+    /* lowest trim target, requested while reclaiming (Long.MAX_VALUE - none) */
+    private static final AtomicLong sPendingTarget = new AtomicLong(Long.MAX_VALUE);
+    private static volatile long sMaxBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    private static final Comparator<MemoryLimitPool> sColdestFirst = new Comparator<MemoryLimitPool>() {
+        @Override
+        public int compare(MemoryLimitPool p1, MemoryLimitPool p2) {
+            long l = p1.getLastUse();
+            long r = p2.getLastUse();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    private MemoryBudget() {}
+
+    /**
+     * set global budget (default - 1/8 of Runtime.maxMemory())
+     * @param maxBytes
+     */
+    public static void setMaxBytes(long maxBytes) {
+        sMaxBytes = maxBytes;
+        trimToBytes(maxBytes);
+    }
+
+    public static long getMaxBytes() { return sMaxBytes; }
+
+    /**
+     *
+     * @return bytes, used by all pools
+     */
+    public static long getBytes() {
+        long bytes = 0;
+        synchronized (sPools) {
+            for (int i = 0; i < sPools.size(); i++) {
+                MemoryLimitPool pool = sPools.get(i).get();
+                if (pool!=null) bytes += pool.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public static int getPoolCount() {
+        return pools().size();
+    }
+
+    /**
+     *
+     * @param pool
+     * @return sub-budget of pool (share of global budget, proportional to pool weight)
+     */
+    public static long getShare(MemoryLimitPool pool) {
+        long weights = 0;
+        for (MemoryLimitPool p : pools())
+            weights += p.getWeight();
+        if (weights <= 0) return sMaxBytes;
+        return sMaxBytes / weights * pool.getWeight();
+    }
+
+    /**
+     * unload drawables (coldest pools first) until all pools use no more than maxBytes
+     * (if another thread reclaims right now, it also applies this target before return)
+     * @param maxBytes
+     */
+    public static void trimToBytes(long maxBytes) {
+        for (;;) {
+            long pending = sPendingTarget.get();
+            if (pending <= maxBytes || sPendingTarget.compareAndSet(pending, maxBytes)) break;
+        }
+        do {
+            if (!sReclaiming.compareAndSet(false, true)) return; // reclaiming thread picks up target
+            try {
+                long target;
+                while ((target = sPendingTarget.getAndSet(Long.MAX_VALUE))!=Long.MAX_VALUE)
+                    reclaim(target);
+            } finally {
+                sReclaiming.set(false);
+            }
+        } while (sPendingTarget.get()!=Long.MAX_VALUE); // posted after loop, but before flag cleared
+    }
+
+    private static void reclaim(long maxBytes) {
+        ArrayList<MemoryLimitPool> pools = pools();
+        long total = 0;
+        long weights = 0;
+        for (MemoryLimitPool pool : pools) {
+            total += pool.getBytes();
+            weights += pool.getWeight();
+        }
+        if (total <= maxBytes) return;
+        Collections.sort(pools, sColdestFirst);
+        // pools over their share
+        for (int i = 0; i < pools.size() && total > maxBytes; i++) {
+            MemoryLimitPool pool = pools.get(i);
+            long share = weights > 0 ? maxBytes / weights * pool.getWeight() : maxBytes;
+            long bytes = pool.getBytes();
+            if (bytes > share)
+                total -= trim(pool, Math.max(share, bytes - (total - maxBytes)));
+        }
+        // any pools
+        for (int i = 0; i < pools.size() && total > maxBytes; i++) {
+            MemoryLimitPool pool = pools.get(i);
+            total -= trim(pool, Math.max(0, pool.getBytes() - (total - maxBytes)));
+        }
+        if (LazyDrawable.DEBUG)
+            Log.d(TAG, "reclaimed, now bytes:"+total+" of "+maxBytes);
+    }
+
+    /**
+     * unload drawables outside of viewports in all pools
+     */
+    public static void trimOffscreen() {
+        for (MemoryLimitPool pool : pools())
+            pool.trimOffscreen();
+    }
+
+    /**
+     * @return freed bytes
+     */
+    private static long trim(MemoryLimitPool pool, long bytes) {
+        long before = pool.getBytes();
+        pool.trimToBytes(bytes);
+        return before - pool.getBytes();
+    }
+
+    static void register(MemoryLimitPool pool) {
+        synchronized (sPools) {
+            sPools.add(new WeakReference<MemoryLimitPool>(pool));
+        }
+    }
+
+    /**
+     * called by pool, after its usage grows
+     */
+    static void onPoolChanged() {
+        long max = sMaxBytes;
+        if (getBytes() > max)
+            trimToBytes(max);
+    }
+
+    /* live pools (cleared references are removed) */
+    private static ArrayList<MemoryLimitPool> pools() {
+        ArrayList<MemoryLimitPool> result = new ArrayList<MemoryLimitPool>();
+        synchronized (sPools) {
+            Iterator<WeakReference<MemoryLimitPool>> it = sPools.iterator();
+            while (it.hasNext()) {
+                MemoryLimitPool pool = it.next().get();
+                if (pool==null)
+                    it.remove();
+                else
+                    result.add(pool);
+            }
+        }
+        return result;
+    }
+}
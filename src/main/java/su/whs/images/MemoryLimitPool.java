@@ -1,10 +1,16 @@
 package su.whs.images;
 
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.WeakHashMap;
 
 import su.whs.wlazydrawable.LazyDrawable;
@@ -16,89 +22,261 @@ import su.whs.wlazydrawable.RemoteDrawable;
 public class MemoryLimitPool {
     private static final String TAG="MemoryLimitPool";
     public static WeakHashMap<Object,MemoryLimitPool> mContextDependedPools = new WeakHashMap<Object,MemoryLimitPool>();
-    private static int MAX_CACHED_ITEMS = 20; // TODO: create getter ?
 
     private Object mContext;
-    private LruCache<String,WeakReference<LazyDrawable>> mRemoteDrawables = new LruCache<String,WeakReference<LazyDrawable>>(MAX_CACHED_ITEMS) {
+    private final ConcurrentLruCache<Key,Entry> mRemoteDrawables;
+    /* keys of garbage collected drawables, dropped on put/trim */
+    private final ReferenceQueue<LazyDrawable> mCleared = new ReferenceQueue<LazyDrawable>();
+    private volatile int mMaxEntries = Integer.MAX_VALUE;
+    private volatile int mWeight = 1;
+    private volatile long mLastUse = SystemClock.uptimeMillis();
+
+    /**
+     * drawable identity (several drawables may show same url), drawable not retained by pool
+     */
+    private static final class Key extends WeakReference<LazyDrawable> {
+        final String mUrl;
+        private final int mHash;
+
+        /* lookup key */
+        Key(String url, LazyDrawable drawable) {
+            this(url, drawable, null);
+        }
+
+        /* stored key - enqueued, when drawable collected */
+        Key(String url, LazyDrawable drawable, ReferenceQueue<LazyDrawable> queue) {
+            super(drawable, queue);
+            mUrl = url;
+            mHash = System.identityHashCode(drawable);
+        }
+
         @Override
-        protected boolean removeEldestEntry(Entry eldest) {
-            Log.e(TAG, "removeEldestEntry:"+eldest+" now size:"+size());
-            boolean result = super.removeEldestEntry(eldest);
-            if (result) {
-                RemoteDrawable remoteDrawable = ((WeakReference<RemoteDrawable>) eldest.getValue()).get();
-                if (remoteDrawable!=null)
-                    remoteDrawable.Unload();
-            }
-            return result;
+        public boolean equals(Object o) {
+            if (o==this) return true;
+            if (!(o instanceof Key)) return false;
+            LazyDrawable drawable = get();
+            return drawable!=null && drawable==((Key) o).get();
+        }
+
+        @Override
+        public int hashCode() { return mHash; }
+    }
+
+    private static class Entry {
+        final int mBytes;
+
+        Entry(int bytes) {
+            mBytes = bytes;
         }
-    };
+    }
 
     private MemoryLimitPool(Object context) {
         mContext = context;
+        mRemoteDrawables = new ConcurrentLruCache<Key, Entry>(Long.MAX_VALUE, // bounded by MemoryBudget
+                new ConcurrentLruCache.Weigher<Key, Entry>() {
+                    @Override
+                    public int weigh(Key key, Entry value) {
+                        return value.mBytes;
+                    }
+                },
+                new ConcurrentLruCache.EvictionListener<Key, Entry>() {
+                    @Override
+                    public void onEvicted(Key key, Entry value) {
+                        LazyDrawable drawable = key.get();
+                        if (LazyDrawable.DEBUG)
+                            Log.d(TAG, "evict:"+key.mUrl+" now bytes:"+mRemoteDrawables.getWeight());
+                        if (drawable!=null) drawable.Unload();
+                    }
+                });
+        MemoryBudget.register(this);
     }
 
-    public static MemoryLimitPool getInstance(Object context) {
-        if (!mContextDependedPools.containsKey(context))
-            mContextDependedPools.put(context,new MemoryLimitPool(context));
-        return mContextDependedPools.get(context);
+    public static synchronized MemoryLimitPool getInstance(Object context) {
+        MemoryLimitPool pool = mContextDependedPools.get(context);
+        if (pool==null) {
+            pool = new MemoryLimitPool(context);
+            mContextDependedPools.put(context,pool);
+            if (context instanceof Context)
+                MemoryPressure.register((Context) context);
+        }
+        return pool;
     }
 
-    public boolean contains(String url) {
-        return mRemoteDrawables.containsKey(url);
+    /**
+     *
+     * @param url
+     * @return true if any drawable with url tracked by pool
+     */
+    public boolean contains(final String url) {
+        return mRemoteDrawables.anyMatch(new ConcurrentLruCache.EntryPredicate<Key, Entry>() {
+            @Override
+            public boolean apply(Key key, Entry value) {
+                return (url==null ? key.mUrl==null : url.equals(key.mUrl)) && key.get()!=null;
+            }
+        });
     }
 
+    /**
+     *
+     * @param drawable
+     * @return true if drawable tracked by pool
+     */
+    public boolean contains(LazyDrawable drawable) {
+        return mRemoteDrawables.containsKey(new Key(null, drawable));
+    }
+
+    /**
+     * move drawable on top of cache and update its weight (drawable may be loaded since last call);
+     * least recently used drawables are unloaded while pool are over budget
+     * (entries are per drawable - drawables with same url are tracked separately)
+     * @param url
+     * @param drawable
+     */
     public void updateLruMark(String url, RemoteDrawable drawable) {
-        if (!mRemoteDrawables.containsKey(url)) {
-            mRemoteDrawables.put(url,new WeakReference<LazyDrawable>(drawable));
-        } else {
-            mRemoteDrawables.get(url);
-        }
+        mLastUse = SystemClock.uptimeMillis();
+        purgeCleared();
+        mRemoteDrawables.put(new Key(url, drawable, mCleared), new Entry(drawable.getAllocationByteCount()));
+        trimEntries();
+        MemoryBudget.onPoolChanged();
     }
 
-    public void recycle(String url) {
-        if (mRemoteDrawables.containsKey(url))
-            mRemoteDrawables.remove(url).get().Unload();
+    /**
+     * stop tracking drawable (drawable unloads itself)
+     * @param drawable
+     */
+    public void remove(LazyDrawable drawable) {
+        mRemoteDrawables.remove(new Key(null, drawable));
+    }
+
+    /**
+     * unload all drawables with url
+     * @param url
+     */
+    public void recycle(final String url) {
+        mRemoteDrawables.evictIf(new ConcurrentLruCache.EntryPredicate<Key, Entry>() {
+            @Override
+            public boolean apply(Key key, Entry value) {
+                return url==null ? key.mUrl==null : url.equals(key.mUrl);
+            }
+        });
     }
 
+    /**
+     * @deprecated pool are bounded by bytes, see {@link #setMaxBytes(long)}
+     * @param size - max number of entries (in addition to byte budget)
+     */
+    @Deprecated
     public void setPoolSize(int size) {
-        mRemoteDrawables.setSize(size);
+        mMaxEntries = size;
+        trimEntries();
+    }
+
+    /**
+     * set own limit for loaded drawables (in addition to share of MemoryBudget; default - no own limit)
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        mRemoteDrawables.setMaxWeight(maxBytes);
+    }
+
+    public long getMaxBytes() { return mRemoteDrawables.getMaxWeight(); }
+
+    /**
+     *
+     * @return sum of weights of drawables in pool
+     */
+    public long getBytes() { return mRemoteDrawables.getWeight(); }
+
+    /**
+     * set weight of pool in MemoryBudget (pool with weight 2 gets twice bigger share, than pool with weight 1)
+     * @param weight
+     */
+    public void setWeight(int weight) {
+        mWeight = Math.max(1, weight);
+    }
+
+    public int getWeight() { return mWeight; }
+
+    /**
+     *
+     * @return sub-budget of pool (share of MemoryBudget)
+     */
+    public long getBudget() { return MemoryBudget.getShare(this); }
+
+    /**
+     *
+     * @return time of last updateLruMark() call (SystemClock.uptimeMillis() base)
+     */
+    public long getLastUse() { return mLastUse; }
+
+    /**
+     * unload drawables outside of viewport of its executor tag (see LazyDrawable.setViewport())
+     */
+    public void trimOffscreen() {
+        mRemoteDrawables.evictIf(new ConcurrentLruCache.EntryPredicate<Key, Entry>() {
+            @Override
+            public boolean apply(Key key, Entry value) {
+                LazyDrawable drawable = key.get();
+                return drawable==null || drawable.isOffscreen();
+            }
+        });
+    }
+
+    /**
+     * unload least recently used drawables until pool uses no more than bytes
+     * @param bytes
+     */
+    void trimToBytes(long bytes) {
+        purgeCleared();
+        mRemoteDrawables.trimToWeight(bytes);
     }
 
     public void reference(String url) {
 
     }
 
-    private class LruCache<A, B> extends LinkedHashMap<A, B> {
-        private int maxEntries;
+    /**
+     * drop entries of garbage collected drawables (its weight would stay in pool until evicted)
+     */
+    private void purgeCleared() {
+        Reference<? extends LazyDrawable> ref;
+        boolean purged = false;
+        while ((ref = mCleared.poll())!=null)
+            purged |= mRemoteDrawables.remove((Key) ref)!=null; // no-op for replaced key instances
+        if (purged && LazyDrawable.DEBUG)
+            Log.d(TAG, "purged collected drawables, now bytes:"+mRemoteDrawables.getWeight());
+    }
 
-        public LruCache(final int maxEntries) {
-            super(maxEntries + 1, 1.0f, true);
-            this.maxEntries = maxEntries;
-        }
+    private void trimEntries() {
+        if (mMaxEntries < Integer.MAX_VALUE)
+            mRemoteDrawables.trimToSize(mMaxEntries);
+    }
 
-        public void setSize(int size) {
-            maxEntries = size;
-        }
+    /**
+     * real memory, allocated by drawable (bitmap, or gif frame and decoder buffers);
+     * shared bitmap are charged in full to every holder: weight in pool are snapshot
+     * (taken at updateLruMark), so share would be stale as soon as holders change.
+     * bitmap, cached by DecodedImageCache, counted by cache too - pools overestimate
+     * memory use and trim earlier, never later
+     * @param drawable
+     * @return bytes
+     */
+    public static int sizeOf(Drawable drawable) {
+        if (drawable instanceof BitmapHandleDrawable)
+            return ((BitmapHandleDrawable) drawable).getHandle().getByteCount();
+        if (drawable instanceof BitmapDrawable)
+            return sizeOf(((BitmapDrawable) drawable).getBitmap());
+        if (drawable instanceof GifDrawableCompat)
+            return ((GifDrawableCompat) drawable).getAllocationByteCount();
+        return 0;
+    }
 
-        /**
-         * Returns <tt>true</tt> if this <code>LruCache</code> has more entries than the maximum specified when it was
-         * created.
-         *
-         * <p>
-         * This method <em>does not</em> modify the underlying <code>Map</code>; it relies on the implementation of
-         * <code>LinkedHashMap</code> to do that, but that behavior is documented in the JavaDoc for
-         * <code>LinkedHashMap</code>.
-         * </p>
-         *
-         * @param eldest
-         *            the <code>Entry</code> in question; this implementation doesn't care what it is, since the
-         *            implementation is only dependent on the size of the cache
-         * @return <tt>true</tt> if the oldest
-         * @see java.util.LinkedHashMap#removeEldestEntry(Map.Entry)
-         */
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry<A, B> eldest) {
-            return super.size() > maxEntries;
-        }
+    public static int sizeOf(Bitmap bitmap) {
+        if (bitmap==null || bitmap.isRecycled()) return 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1)
+            return bitmap.getByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.images;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import su.whs.wlazydrawable.LazyDrawable;
+
+/**
+ * graded response to system memory pressure (ComponentCallbacks2.onTrimMemory(), API 14+)
+ *
+ *  - RUNNING_MODERATE: caches shrinks to 3/4 of budget
+ *  - RUNNING_LOW: caches shrinks to 1/2 of budget, off-screen drawables and unused images are dropped
+ *  - RUNNING_CRITICAL, UI_HIDDEN: caches shrinks to 1/4, gif decoder buffers released too
+ *  - BACKGROUND and above, onLowMemory(): everything cleared
+ *
+ * budgets are not changed - caches grows again, when pressure gone;
+ * callbacks registered by MemoryLimitPool.getInstance(), or by register();
+ * onTrimMemory()/onLowMemory() may be called directly (tests)
+ *
+ * UI thread only
+ */
+public final class MemoryPressure {
+    private static final String TAG = "MemoryPressure";
+    private static boolean sRegistered = false;
+
+    private MemoryPressure() {}
+
+    /**
+     * register for memory pressure callbacks of application (once per process)
+     * @param context
+     */
+    public static synchronized void register(Context context) {
+        if (sRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) return;
+        Context app = context.getApplicationContext();
+        (app!=null ? app : context).registerComponentCallbacks(new Callbacks());
+        sRegistered = true;
+    }
+
+    /**
+     * @param level - ComponentCallbacks2.TRIM_MEMORY_* level
+     */
+    public static void onTrimMemory(int level) {
+        if (LazyDrawable.DEBUG)
+            Log.d(TAG, "trim memory, level:"+level+" bytes:"+MemoryBudget.getBytes());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) { // and UI_HIDDEN
+            shrink(4);
+            GifDrawableCompat.trimMemoryAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shrink(2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            MemoryBudget.trimToBytes(MemoryBudget.getMaxBytes() / 4 * 3);
+            DecodedImageCache.trimToBytes(DecodedImageCache.getMaxBytes() / 4 * 3);
+            BitmapPool.trimToBytes(BitmapPool.getMaxBytes() / 4 * 3);
+        }
+    }
+
+    public static void onLowMemory() {
+        clear();
+    }
+
+    /* drop off-screen and unused, then shrink to 1/divider of budgets */
+    private static void shrink(int divider) {
+        MemoryBudget.trimOffscreen();
+        DecodedImageCache.trimUnused();
+        BitmapPool.clear();
+        MemoryBudget.trimToBytes(MemoryBudget.getMaxBytes() / divider);
+        DecodedImageCache.trimToBytes(DecodedImageCache.getMaxBytes() / divider);
+        EncodedImageCache.trimToBytes(EncodedImageCache.getMaxBytes() / divider);
+    }
+
+    private static void clear() {
+        MemoryBudget.trimToBytes(0);
+        DecodedImageCache.clear();
+        EncodedImageCache.clear();
+        BitmapPool.clear();
+        GifDrawableCompat.trimMemoryAll();
+    }
+
+    /* loaded only on API 14+ */
+    private static class Callbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            MemoryPressure.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+
+        @Override
+        public void onLowMemory() {
+            MemoryPressure.onLowMemory();
+        }
+    }
+}
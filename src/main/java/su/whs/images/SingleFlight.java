@@ -0,0 +1,157 @@
+package su.whs.images;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * deduplicates concurrent loads with same key:
+ * first caller executes load, concurrent callers with same key wait and receive same result
+ *
+ * waiter with cancelled {@link LoadCancellation} (attached to its thread) stops waiting
+ * immediately, leader and other waiters are not affected
+ */
+public class SingleFlight<K,V> {
+
+    /**
+     * load, executed once for all concurrent callers
+     */
+    public interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private static class Flight<V> {
+        /* guarded by flight monitor */
+        boolean mDone = false;
+        /* guarded by mFlights */
+        int mWaiters = 0;
+        V mResult;
+        IOException mError;
+    }
+
+    private final HashMap<K,Flight<V>> mFlights = new HashMap<K, Flight<V>>();
+
+    /**
+     * execute call, or attach to in-flight call with same key
+     * @param key - load key
+     * @param call - load
+     * @return result of call (same instance for all attached callers)
+     * @throws IOException if call failed
+     */
+    public V execute(K key, Call<V> call) throws IOException {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+            if (flight==null) {
+                flight = new Flight<V>();
+                mFlights.put(key,flight);
+                leader = true;
+            } else {
+                flight.mWaiters++;
+            }
+        }
+
+        if (!leader) {
+            await(key, flight);
+            if (flight.mError instanceof InterruptedIOException) {
+                LoadCancellation cancellation = LoadCancellation.current();
+                if (cancellation!=null)
+                    cancellation.throwIfCancelled();
+                return execute(key, call); // leader was cancelled - not our failure, retry
+            }
+            if (flight.mError!=null)
+                throw new IOException("shared load failed: "+flight.mError.getMessage());
+            return flight.mResult;
+        }
+
+        try {
+            flight.mResult = call.call();
+        } catch (IOException e) {
+            flight.mError = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.mError = new IOException(e.toString());
+            throw e;
+        } finally {
+            int waiters;
+            synchronized (mFlights) {
+                mFlights.remove(key);
+                waiters = flight.mWaiters;
+            }
+            if (waiters>0 && flight.mResult!=null)
+                onShared(key, flight.mResult, waiters);
+            synchronized (flight) {
+                flight.mDone = true;
+                flight.notifyAll();
+            }
+        }
+        return flight.mResult;
+    }
+
+    /**
+     * wait for leader; return early, if load of waiter are cancelled (or thread interrupted)
+     * and leader did not count waiter for result yet
+     * @throws InterruptedIOException if waiter left flight
+     */
+    private void await(K key, final Flight<V> flight) throws InterruptedIOException {
+        LoadCancellation cancellation = LoadCancellation.current();
+        LoadCancellation.OnCancelListener listener = null;
+        if (cancellation!=null) {
+            listener = new LoadCancellation.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    synchronized (flight) {
+                        flight.notifyAll(); // waiters recheck own cancellation
+                    }
+                }
+            };
+            cancellation.register(listener);
+        }
+        boolean interrupted = false;
+        boolean counted = false; // result (and its share) already delivered to this waiter
+        try {
+            synchronized (flight) {
+                while (!flight.mDone) {
+                    if (!counted && (interrupted || (cancellation!=null && cancellation.isCancelled()))) {
+                        if (leave(key, flight))
+                            throw new InterruptedIOException("load cancelled while waiting for "+key);
+                        counted = true; // leader finishing - take result, caller releases it
+                    }
+                    try {
+                        flight.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (listener!=null)
+                cancellation.unregister(listener);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * detach waiter from flight, if leader not finished yet
+     * @return true if waiter detached
+     */
+    private boolean leave(K key, Flight<V> flight) {
+        synchronized (mFlights) {
+            if (mFlights.get(key)!=flight) return false;
+            flight.mWaiters--;
+            return true;
+        }
+    }
+
+    /**
+     * called (from leader's thread, before waiters are released) when result delivered to more than one caller
+     * @param key - load key
+     * @param value - shared result
+     * @param waiters - number of attached callers
+     */
+    protected void onShared(K key, V value, int waiters) {
+
+    }
+}
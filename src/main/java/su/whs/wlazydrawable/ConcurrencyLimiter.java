@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+/**
+ * adaptive limit of concurrent loads for TagExecutor (gradient based)
+ *
+ * long-term latency average are used as baseline: while recent loads are not slower than
+ * baseline * TOLERANCE limit grows by sqrt(limit), when sources slow down - limit shrinks
+ * proportionally; failed loads shrink limit by BACKOFF
+ */
+public class ConcurrencyLimiter {
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final long THROUGHPUT_WINDOW = 1000000000L; // 1s
+
+    private int mMinLimit;
+    private int mMaxLimit;
+    private double mLimit;
+    private volatile int mCurrentLimit;
+    private double mLongLatency = 0;
+    private double mShortLatency = 0;
+    private long mWindowStart = 0;
+    private int mWindowCount = 0;
+    private volatile double mThroughput = 0;
+
+    public ConcurrencyLimiter(int minLimit, int maxLimit) {
+        setBounds(minLimit, maxLimit);
+        mLimit = mMinLimit;
+        mCurrentLimit = mMinLimit;
+    }
+
+    /**
+     * change bounds for limit
+     * @param minLimit
+     * @param maxLimit
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.min(mMaxLimit, Math.max(mMinLimit, mLimit));
+        mCurrentLimit = (int) mLimit;
+    }
+
+    /**
+     * register finished load
+     * @param latencyNanos - load duration
+     * @param failed - true if load failed (error result, or loader thrown)
+     */
+    public synchronized void onSample(long latencyNanos, boolean failed) {
+        long now = System.nanoTime();
+        if (mWindowStart==0) mWindowStart = now;
+        mWindowCount++;
+        if (now - mWindowStart >= THROUGHPUT_WINDOW) {
+            double rate = mWindowCount * 1e9 / (now - mWindowStart);
+            mThroughput = mThroughput==0 ? rate : mThroughput * 0.7 + rate * 0.3;
+            mWindowStart = now;
+            mWindowCount = 0;
+        }
+
+        double newLimit;
+        if (failed) {
+            newLimit = mLimit * BACKOFF;
+        } else {
+            double sample = latencyNanos;
+            if (mLongLatency==0) {
+                mLongLatency = sample;
+                mShortLatency = sample;
+            } else {
+                mLongLatency += (sample - mLongLatency) / 32;
+                mShortLatency += (sample - mShortLatency) / 4;
+            }
+            if (mLongLatency / mShortLatency > 2.0)
+                mLongLatency *= 0.95; // sources becomes faster - let baseline recover
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * mLongLatency / mShortLatency));
+            newLimit = mLimit * gradient + Math.sqrt(mLimit);
+            newLimit = mLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        }
+        mLimit = Math.min(mMaxLimit, Math.max(mMinLimit, newLimit));
+        mCurrentLimit = (int) mLimit;
+    }
+
+    /**
+     *
+     * @return current limit of concurrent loads
+     */
+    public int getLimit() { return mCurrentLimit; }
+
+    public synchronized int getMinLimit() { return mMinLimit; }
+
+    public synchronized int getMaxLimit() { return mMaxLimit; }
+
+    /**
+     *
+     * @return recent (smoothed) load latency in milliseconds
+     */
+    public synchronized long getLatencyMillis() { return (long) (mShortLatency / 1000000); }
+
+    /**
+     *
+     * @return finished loads per second (smoothed)
+     */
+    public double getThroughput() { return mThroughput; }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * coalesces invalidate requests from background threads
+ *
+ * dirty drawables are collected into concurrent set (repeated requests are merged),
+ * all of them are invalidated by single main thread message
+ */
+final class InvalidationDispatcher {
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Set<Drawable> sDirty = Collections.newSetFromMap(new ConcurrentHashMap<Drawable, Boolean>());
+    private static final AtomicBoolean sScheduled = new AtomicBoolean(false);
+
+    private static final Runnable sFlush = new Runnable() {
+        @Override
+        public void run() {
+            sScheduled.set(false); // drawables, added from now, will be flushed by next message
+            Iterator<Drawable> it = sDirty.iterator();
+            while (it.hasNext()) {
+                Drawable d = it.next();
+                it.remove();
+                d.invalidateSelf();
+            }
+        }
+    };
+
+    private InvalidationDispatcher() {}
+
+    /**
+     * invalidate drawable on main thread (with next flush)
+     * @param drawable
+     */
+    static void invalidate(Drawable drawable) {
+        sDirty.add(drawable);
+        if (sScheduled.compareAndSet(false, true))
+            sHandler.post(sFlush);
+    }
+}
@@ -28,19 +28,25 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
 //import android.support.annotation.CallSuper;
 //import android.support.v7.appcompat.BuildConfig;
 import android.util.Log;
 
+import su.whs.images.AnimationClock;
+import su.whs.images.BitmapHandleDrawable;
+import su.whs.images.BitmapPool;
+import su.whs.images.GifDrawableCompat;
+import su.whs.images.LoadCancellation;
+import su.whs.images.MemoryLimitPool;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Created by igor n. boulliev <igor@whs.su> on 29.08.15.
@@ -56,20 +62,30 @@ import java.util.concurrent.TimeUnit;
 public abstract class LazyDrawable extends Drawable implements Animatable, Drawable.Callback, su.whs.lazydrawable.parent.LazyDrawable {
     public static boolean DEBUG = false;
     private static final String TAG = "LazyDrawable";
-    private static WeakHashMap<Object,ThreadPoolExecutor> executor = new WeakHashMap<Object, ThreadPoolExecutor>();//new ThreadPoolExecutor(1,1,1000L, TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(500));
+    private static WeakHashMap<Object,TagExecutor> executor = new WeakHashMap<Object, TagExecutor>();
     private Drawable.Callback mCallbackCompat = null;
-    private Drawable mDrawable = null;
+    /* published by loader thread, read without locks by UI thread */
+    private volatile Drawable mDrawable = null;
+    private static final AtomicReferenceFieldUpdater<LazyDrawable,Drawable> sDrawableUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(LazyDrawable.class, Drawable.class, "mDrawable");
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     private Drawable mLoadingDrawable = null;
     private Drawable mErrorDrawable = null;
     private Drawable mPlaceholderDrawable = null;
-    private boolean mIsError = false;
+    /* shared immutable states of info drawables, own drawables are created with first use */
+    private Drawable.ConstantState mLoadingState = null;
+    private Drawable.ConstantState mErrorState = null;
+    private Drawable.ConstantState mPlaceholderState = null;
     private Object mExecutorTag = null;
+    private volatile TagExecutor mExecutor = null;
     protected Rect mBounds = new Rect();
     private ScaleType mScaleType = ScaleType.CENTER_CROP;
     private int mEdgeColor = Color.WHITE;
     private int mRealWidth = -1;
     private int mRealHeight = -1;
-    private int mLoadingPriority = 0;
+    private volatile int mLoadingPriority = 0;
+    /* incremented by setBounds(), so loader may detect bounds changed while drawable published */
+    private volatile int mBoundsVersion = 0;
 
     /**
      * create new LazyDrawable instance
@@ -90,15 +106,48 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * set priority for image - images with lowest priority will be pushed into head of queue
      * @param priority - integer value
      */
-    public synchronized void setLoadingPriority(int priority) {
+    public void setLoadingPriority(int priority) {
         mLoadingPriority = priority;
+        LoadingRunnable r = mInitialLoadingRunnable;
+        if (r!=null) getExecutor().reprioritize(r);
     }
 
     /**
      * actually, this method are called by executor's Comparator
      * @return actual priority for image
      */
-    public synchronized int getLoadingPriority() { return mLoadingPriority; }
+    public int getLoadingPriority() { return mLoadingPriority; }
+
+    /**
+     * priority used for initial loading: distance from drawable bounds to host viewport
+     * (see {@link #setViewport(Object, Rect)}) plus value from setLoadingPriority()
+     * @return priority for queue
+     */
+    protected int computeLoadingPriority() {
+        return getLoadingPriority() + ViewportScheduler.distance(mExecutorTag, mBounds);
+    }
+
+    /**
+     *
+     * @return true if host reported viewport (see {@link #setViewport(Object, Rect)}) and drawable are outside of it
+     */
+    public boolean isOffscreen() {
+        return ViewportScheduler.distance(mExecutorTag, mBounds) > 0;
+    }
+
+    /**
+     * set current host viewport for all drawables with executorTag;
+     * queued loads re-ranked by distance of drawable bounds from viewport
+     * @param executorTag - tag for queue
+     * @param viewport - visible area (in drawables bounds coordinates), null to reset
+     */
+    public static void setViewport(Object executorTag, Rect viewport) {
+        ViewportScheduler.setViewport(executorTag, viewport);
+        TagExecutor tagExecutor = findExecutor(executorTag);
+        if (tagExecutor!=null) {
+            tagExecutor.reorder();
+        }
+    }
     /*
         on AOSP < 11 this method must be used instead setCallback()
      */
@@ -122,16 +171,20 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
     public void setScaleType(ScaleType scaleType) {
         if (mScaleType == scaleType) return;
         mScaleType = scaleType;
-        synchronized (this) {
-            if (mDrawable!=null) invalidateSelfOnUiThread();
-        }
+        if (mDrawable!=null) invalidateSelfOnUiThread();
     }
 
     /**
      * for checking if loading process are started
      * @return
      */
-    public boolean isLoading() { return mInitialLoadingRunnable.isRunning(); }
+    public boolean isLoading() { return initialState()==LoadState.LOADING; }
+
+    /**
+     *
+     * @return state of initial loading
+     */
+    public LoadState getLoadState() { return initialState(); }
 
     /**
      * unload drawable from memory (default behavior - calls setDrawable(null)
@@ -139,13 +192,12 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
 
   //  @CallSuper
     @Override
-    public synchronized void Unload() {
+    public void Unload() {
         setDrawable(null);
-        mInitialLoadingRunnable.cancel();
-        synchronized (this) {
-            mIsError = false;
-            mDrawable = null;
-        }
+        cancelLoading(mInitialLoadingRunnable);
+        cancelLoading(mPrefetchRunnable);
+        LoadingRunnable r = mInitialLoadingRunnable;
+        if (r!=null) r.reset();
     }
 
     /**
@@ -160,9 +212,10 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @return width of loaded drawable, or width passed with constructor (if no drawable loaded yet)
      */
     @Deprecated
-    public synchronized int getWrappedDrawableWidth() {
-        if (mDrawable!=null) {
-            return mDrawable.getIntrinsicWidth();
+    public int getWrappedDrawableWidth() {
+        Drawable d = mDrawable;
+        if (d!=null) {
+            return d.getIntrinsicWidth();
         }
         return getIntrinsicWidth();
     }
@@ -172,21 +225,31 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @return height of loaded drawable, or height passed with constructor (if no drawable loaded yet)
      */
     @Deprecated
-    public synchronized int getWrappedDrawableHeight() {
-        if (mDrawable!=null) {
-            return mDrawable.getIntrinsicHeight();
+    public int getWrappedDrawableHeight() {
+        Drawable d = mDrawable;
+        if (d!=null) {
+            return d.getIntrinsicHeight();
         }
         return getIntrinsicHeight();
     }
 
+    /**
+     *
+     * @return memory, allocated by loaded drawable (0 if not loaded)
+     */
+    public int getAllocationByteCount() {
+        return MemoryLimitPool.sizeOf(mDrawable);
+    }
+
     /**
      * returns actual bounds, applied to loaded drawable (within LazyDrawable.getBounds())
      *  to calculate drawable real image rect - move coordinates to LazyDrawable.left/top
      * @param lazyRect
      */
     public void getWrappedDrawableBounds(Rect lazyRect) {
-        if (mDrawable!=null) {
-            lazyRect.set(mDrawable.getBounds());
+        Drawable d = mDrawable;
+        if (d!=null) {
+            lazyRect.set(d.getBounds());
         }
     }
 
@@ -197,7 +260,10 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      */
 
     protected void setError(boolean error) {
-        mIsError = false;
+        if (error)
+            initialLoading().fail();
+        else if (mInitialLoadingRunnable!=null)
+            mInitialLoadingRunnable.clearError();
     }
 
     /**
@@ -215,20 +281,64 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
         CENTER_CROP
     }
 
+    /**
+     * loading state (see {@link #getLoadState()})
+     *
+     * IDLE -&gt; QUEUED -&gt; LOADING -&gt; READY | ERROR | CANCELLED;
+     * transitions are atomic (compare-and-set), so state may be read from any thread without locks
+     */
+
+    public enum LoadState {
+        /** not loaded and not queued **/
+        IDLE,
+        /** waiting in executor queue **/
+        QUEUED,
+        /** loading in progress **/
+        LOADING,
+        /** drawable loaded **/
+        READY,
+        /** loading failed (not retried until Unload() or retry()) **/
+        ERROR,
+        /** cancelled while queued or loading, becomes IDLE when runnable leaves executor **/
+        CANCELLED
+    }
+
+    /**
+     * what executor does with new load when queue are full
+     * (dropped loads are not errors - drawable stays idle and loading retried on next draw)
+     */
+
+    public enum OverloadPolicy {
+        /** drop queued load with lowest priority (farthest from viewport), or new load if it has lowest priority **/
+        DROP_LOWEST_PRIORITY,
+        /** keep new load aside, until queue has free space **/
+        DEFER,
+        /** block caller up to getExecutorBlockTimeout() millis, then drop new load **/
+        BLOCK
+    }
+
     /**
      *
      * @param tag
-     * @return ThreadPoolExecute for tag
+     * @return TagExecutor for tag (all tags share LoaderPool threads)
      */
 
-    private static synchronized ThreadPoolExecutor getExecutorWithTag(Object tag, int poolSize, int maxPoolSize) {
+    private static synchronized TagExecutor getExecutorWithTag(Object tag, int poolSize, int maxPoolSize, int weight, int queueCapacity, OverloadPolicy policy, long blockTimeout) {
         if (!executor.containsKey(tag)) {
-            BlockingQueue<Runnable> bq = new PriorityBlockingQueue<>(5, new RunnableComparator());
-            executor.put(tag, new CustomThreadPoolExecutor(poolSize, maxPoolSize, 100L, TimeUnit.SECONDS, bq));
+            executor.put(tag, new TagExecutor(LoaderPool.getInstance(), poolSize, maxPoolSize, weight, queueCapacity, policy, blockTimeout));
         }
         return executor.get(tag);
     }
 
+    /**
+     *
+     * @param tag - executor tag
+     * @return TagExecutor for tag, or null if no drawables with this tag was loaded yet
+     */
+    public static synchronized TagExecutor findExecutor(Object tag) {
+        return executor.get(tag);
+    }
+
     /**
      * MUST returns Drawable on Demand
      * WARNING: this method called from background thread
@@ -250,48 +360,90 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      *
      * @return true if drawable was not loaded
      */
-    public boolean isError() { return mIsError; }
+    public boolean isError() { return initialState()==LoadState.ERROR; }
 
     /**
      * handle loading error
      * WARNING: this method called from background thread
      */
-    protected synchronized void handleLoadError() {
-        mIsError = true;
+    protected void handleLoadError() {
+        initialLoading().fail();
         onLoadingError();
         invalidateSelfOnUiThread();
     }
 
+    /* runnables are created on first use - most of drawables (spans of long document) never loaded */
+    private volatile LoadingRunnable mInitialLoadingRunnable = null;
+    private volatile LoadingRunnable mPrefetchRunnable = null;
+    private static final AtomicReferenceFieldUpdater<LazyDrawable,LoadingRunnable> sInitialUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(LazyDrawable.class, LoadingRunnable.class, "mInitialLoadingRunnable");
+    private static final AtomicReferenceFieldUpdater<LazyDrawable,LoadingRunnable> sPrefetchUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(LazyDrawable.class, LoadingRunnable.class, "mPrefetchRunnable");
+
+    private LoadingRunnable initialLoading() {
+        LoadingRunnable r = mInitialLoadingRunnable;
+        if (r==null) {
+            r = new InitialLoadingRunnable();
+            if (!sInitialUpdater.compareAndSet(this, null, r)) r = mInitialLoadingRunnable; // created by another thread
+        }
+        return r;
+    }
+
+    private LoadingRunnable prefetchLoading() {
+        LoadingRunnable r = mPrefetchRunnable;
+        if (r==null) {
+            r = new PrefetchRunnable();
+            if (!sPrefetchUpdater.compareAndSet(this, null, r)) r = mPrefetchRunnable; // created by another thread
+        }
+        return r;
+    }
+
+    /**
+     * @return state of initial loading (IDLE, if never started)
+     */
+    private LoadState initialState() {
+        LoadingRunnable r = mInitialLoadingRunnable;
+        return r==null ? LoadState.IDLE : r.getState();
+    }
+
     /**
      * background loading
      */
-    private LoadingRunnable mInitialLoadingRunnable = new LoadingRunnable() {
-        private boolean mCancelled = false;
-        private boolean mIsRunning = false;
+    /* first retry delay for load, rejected by overloaded executor (doubled on every rejection) */
+    private static final long REJECTED_RETRY_DELAY = 100;
+    private static final long REJECTED_RETRY_MAX_DELAY = 1600;
 
+    private class InitialLoadingRunnable extends LoadingRunnable {
         @Override
         public int getPriority() {
-            return 0;
+            return computeLoadingPriority();
         }
 
         @Override
-        public void run() {
-            boolean _cancelled = false;
-            synchronized (this) { _cancelled = mCancelled; }
-            if (_cancelled) { uncancel(); return; }
-            Drawable d = null;
-            try {
-                synchronized (this) { mIsRunning = true; }
-                 d = readDrawable();
-            } finally {
-                synchronized (this) { mIsRunning = false; }
-            }
-            if (d==null) {
-                handleLoadError();
-            } else {
-                setDrawable(d);
-                handleLoadFinish();
+        protected Drawable doLoad() {
+            mRejections = 0; // queue accepted load
+            Drawable d = getDrawable();
+            if (d!=null) {
+                skipSample(); // already loaded
+                return d;
             }
+            return readDrawable();
+        }
+
+        @Override
+        protected void onLoaded(Drawable d) {
+            if (d!=getDrawable()) setDrawable(d);
+            handleLoadFinish();
+        }
+
+        @Override
+        protected void onLoadFailed() {
+            handleLoadError();
+        }
+
+        @Override
+        protected void onDiscarded(Drawable d) {
+            if (d!=getDrawable()) onDrawableReleased(d);
         }
 
         @Override
@@ -300,51 +452,139 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
         }
 
         @Override
-        public synchronized void cancel() {
-            mCancelled = true;
+        public void onShed() {
+            invalidateSelfOnUiThread(); // visible drawable will retry on next draw
         }
 
+        /* retry after backoff: immediate redraw would be rejected again (on every frame) */
+        private volatile int mRejections = 0;
+        private volatile boolean mRetryScheduled = false;
+        private Runnable mRetry = null;
+
         @Override
-        public synchronized void uncancel() {
-            mCancelled = false;
+        public void onRejected() {
+            if (mRetryScheduled) return;
+            mRetryScheduled = true;
+            if (mRetry==null) {
+                mRetry = new Runnable() {
+                    @Override
+                    public void run() {
+                        mRetryScheduled = false;
+                        invalidateSelf();
+                    }
+                };
+            }
+            int rejections = mRejections;
+            mRejections = rejections + 1;
+            sMainHandler.postDelayed(mRetry, Math.min(REJECTED_RETRY_MAX_DELAY, REJECTED_RETRY_DELAY << Math.min(rejections, 4)));
         }
+    }
 
+    /**
+     * prefetch-only loading: warms caches, drawable are not created
+     */
+    private class PrefetchRunnable extends LoadingRunnable {
         @Override
-        public synchronized boolean isRunning() {
-            return mIsRunning;
+        public int getPriority() {
+            return computeLoadingPriority();
+        }
+
+        @Override
+        protected boolean isSampled() { return false; } // mostly no-op or partial load
+
+        @Override
+        protected Drawable doLoad() {
+            // real load does same work (and more)
+            if (getDrawable()==null && initialState()==LoadState.IDLE)
+                onPrefetch();
+            return null;
+        }
+
+        @Override
+        protected void onLoaded(Drawable d) {}
+
+        @Override
+        protected void onLoadFailed() {
+            reset(); // prefetch has no result - may be repeated
         }
-    };
+
+        @Override
+        public void onExecutionFailed(Throwable t) {
+            reset();
+            Log.w(TAG, "prefetch failed", t); // not a loading error - drawable still may be loaded
+        }
+    }
+
+    /**
+     * warm caches for drawable, without creating it (called by {@link #prefetch(Collection)})
+     * default implementation does nothing
+     * WARNING: this method called from background thread
+     */
+    protected void onPrefetch() {}
+
+    /**
+     * return drawable, if its pixels already in memory (for example, decoded image cache hit);
+     * such drawable are installed by load() immediately, without executor and loading animation
+     * default implementation returns null
+     * WARNING: this method called from UI thread - must not block (no I/O, no decoding)
+     * @return drawable, or null
+     */
+    protected Drawable peekMemoryCache() { return null; }
 
     /**
      * if Drawable loaded - draw it using {#ScaleType}, or draw loading progress, or draw error sign
      * @param canvas
      */
 
-    private Paint dbgPaint = new Paint();
-    {
-        dbgPaint.setStyle(Paint.Style.STROKE);
-        dbgPaint.setColor(Color.RED);
+    /* debug paint, allocated only with DEBUG (UI thread) */
+    private static Paint sDebugPaint = null;
+
+    private static Paint getDebugPaint() {
+        if (sDebugPaint==null) {
+            sDebugPaint = new Paint();
+            sDebugPaint.setStyle(Paint.Style.STROKE);
+            sDebugPaint.setColor(Color.RED);
+        }
+        return sDebugPaint;
     }
+
+    /* spinner redraw period (clock ticks with vsync) */
+    private static final long LOADING_FRAME_PERIOD = 60;
+    /* loading animation driven by shared clock, while drawable are drawn (created with first spinner frame) */
+    private AnimationClock.Client mLoadingAnimation = null;
+
+    private AnimationClock.Client getLoadingAnimation() {
+        if (mLoadingAnimation==null) {
+            mLoadingAnimation = new AnimationClock.Client() {
+                private long mLastFrame = -1;
+
+                @Override
+                public int onFrame(long frameTime) {
+                    if (!hasLoadingDrawable() || isError() || !isLoading()) return AnimationClock.STOP;
+                    long frame = frameTime / LOADING_FRAME_PERIOD;
+                    if (frame==mLastFrame) return AnimationClock.IDLE;
+                    mLastFrame = frame;
+                    invalidateSelf();
+                    return AnimationClock.INVALIDATED;
+                }
+            };
+        }
+        return mLoadingAnimation;
+    }
+
     public void draw(Canvas canvas) {
-        Drawable d;
-        boolean isError;
-        synchronized (this) {
-            d = mDrawable;
-            isError = mIsError;
+        Drawable d = mDrawable;
+        boolean isError = isError();
+        if (d==null) {
+            load();
+            d = mDrawable; // installed from memory cache - draw in this frame
         }
         if (d!=null) {
             drawDrawable(canvas,d);
-        } else {
-            load();
         }
-        if (mLoadingDrawable!=null && !isError && isLoading()) {
+        if (hasLoadingDrawable() && !isError && isLoading()) {
             drawNextLoadingFrame(canvas);
-            scheduleSelf(new Runnable() {
-                @Override
-                public void run() {
-                    invalidateSelf();
-                }
-            }, SystemClock.uptimeMillis()+60);
+            AnimationClock.getInstance().register(getLoadingAnimation());
         } else if (isError) {
             drawLoadError(canvas);
         } else {
@@ -352,7 +592,7 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
                 Log.w("LazyDrawable", "Loading Drawable are null!");
             }
         }
-        /* canvas.drawRect(mBounds.left+5,mBounds.top+5,mBounds.right-5,mBounds.bottom-5,dbgPaint); */
+        /* canvas.drawRect(mBounds.left+5,mBounds.top+5,mBounds.right-5,mBounds.bottom-5,getDebugPaint()); */
     }
 
     /**
@@ -388,30 +628,71 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
     }
 
     /**
-     * constructs (if need) thread pool executor
-     * @return ThreadPoolExecutor
+     * constructs (if need) executor for tag
+     * @return TagExecutor
      */
-    protected ThreadPoolExecutor getExecutor() {
-        return getExecutorWithTag(mExecutorTag,getExecutorPoolSize(),getExecutorMaxPoolSize());
+    protected TagExecutor getExecutor() {
+        TagExecutor executor = mExecutor;
+        if (executor==null) {
+            executor = getExecutorWithTag(mExecutorTag,getExecutorPoolSize(),getExecutorMaxPoolSize(),getExecutorWeight(),
+                    getExecutorQueueCapacity(),getExecutorOverloadPolicy(),getExecutorBlockTimeout());
+            mExecutor = executor; // avoid static lock on every load()
+        }
+        return executor;
     }
 
     /**
-     * @return executor pool size
+     * @return number of concurrent loads, started for tag before it competes with other tags by weight
+     *   (also lower bound for adaptive concurrency limit)
      */
     protected int getExecutorPoolSize() { return 3; }
 
     /**
      *
-     * @return executor max pool size
+     * @return upper bound for adaptive limit of concurrent loads for tag (threads are limited by LoaderPool.setMaxThreads())
      */
     protected int getExecutorMaxPoolSize() { return 10; }
 
+    /**
+     *
+     * @return share of shared loader threads for tag, relative to other tags
+     */
+    protected int getExecutorWeight() { return 1; }
+
+    /**
+     *
+     * @return max number of queued loads
+     */
+    protected int getExecutorQueueCapacity() { return 500; }
+
+    /**
+     *
+     * @return executor behavior when queue are full
+     */
+    protected OverloadPolicy getExecutorOverloadPolicy() { return OverloadPolicy.DROP_LOWEST_PRIORITY; }
+
+    /**
+     *
+     * @return max time (millis) to block caller with OverloadPolicy.BLOCK
+     */
+    protected long getExecutorBlockTimeout() { return 50L; }
+
     /**
      * set loading progress drawable
      * @param drawable
      */
     public void setLoadingDrawable(Drawable drawable) {
         mLoadingDrawable = drawable;
+        mLoadingState = null;
+    }
+
+    /**
+     * set loading progress drawable, shared by many drawables (own drawable are created with first spinner frame)
+     * @param state - drawable state, not modified
+     */
+    public void setLoadingDrawableState(Drawable.ConstantState state) {
+        mLoadingState = state;
+        mLoadingDrawable = null;
     }
 
     /**
@@ -420,9 +701,61 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      */
     public void setErrorDrawable(Drawable drawable) {
         mErrorDrawable = drawable;
+        mErrorState = null;
     }
 
-    public void setPlaceholderDrawable(Drawable drawable) { mPlaceholderDrawable = drawable; }
+    /**
+     * set error sign drawable, shared by many drawables (own drawable are created with first error frame)
+     * @param state - drawable state, not modified
+     */
+    public void setErrorDrawableState(Drawable.ConstantState state) {
+        mErrorState = state;
+        mErrorDrawable = null;
+    }
+
+    public void setPlaceholderDrawable(Drawable drawable) {
+        mPlaceholderDrawable = drawable;
+        mPlaceholderState = null;
+    }
+
+    public void setPlaceholderDrawableState(Drawable.ConstantState state) {
+        mPlaceholderState = state;
+        mPlaceholderDrawable = null;
+    }
+
+    /**
+     *
+     * @return placeholder drawable, or null (UI thread)
+     */
+    protected Drawable getPlaceholderDrawable() {
+        if (mPlaceholderDrawable==null && mPlaceholderState!=null)
+            mPlaceholderDrawable = newInfoDrawable(mPlaceholderState);
+        return mPlaceholderDrawable;
+    }
+
+    private boolean hasLoadingDrawable() {
+        return mLoadingDrawable!=null || mLoadingState!=null;
+    }
+
+    /* UI thread */
+    private Drawable getLoadingDrawable() {
+        if (mLoadingDrawable==null && mLoadingState!=null)
+            mLoadingDrawable = newInfoDrawable(mLoadingState);
+        return mLoadingDrawable;
+    }
+
+    /* UI thread */
+    private Drawable getErrorDrawable() {
+        if (mErrorDrawable==null && mErrorState!=null)
+            mErrorDrawable = newInfoDrawable(mErrorState);
+        return mErrorDrawable;
+    }
+
+    private static Drawable newInfoDrawable(Drawable.ConstantState state) {
+        Drawable d = state.newDrawable().mutate(); // own alpha - shared state stays untouched
+        d.setBounds(0, 0, d.getIntrinsicWidth(), d.getIntrinsicHeight());
+        return d;
+    }
 
     /**
      *
@@ -456,10 +789,8 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
     @Override
     public void setBounds(final int left, final int top, final int right, final int bottom) {
         mBounds.set(left,top,right,bottom);
-        Drawable d;
-        synchronized (this) {
-            d = mDrawable;
-        }
+        mBoundsVersion++;
+        Drawable d = mDrawable;
         if (d!=null) {
             applyBounds(d);
         }
@@ -471,24 +802,28 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
         setBounds(bounds.left,bounds.top,bounds.right,bounds.bottom);
     }
 
+    /* applyBounds() called from UI thread (setBounds) and from loader (setDrawable) */
+    private static final ThreadLocal<Rect> sScratchRect = new ThreadLocal<Rect>() {
+        @Override
+        protected Rect initialValue() {
+            return new Rect();
+        }
+    };
+
     /**
      * apply bounds to loaded drawable; calculate scaled bounds if need
      * @param drawable
      */
     private void applyBounds(Drawable drawable) {
         if (mBounds.width()==0 || mBounds.height()==0) {
-            synchronized (this) {
-                Log.e(TAG,"WARNING: bounds size are zero");
-            }
+            Log.e(TAG,"WARNING: bounds size are zero");
             invalidateSelfOnUiThread();
             return;
         }
         int w = drawable.getIntrinsicWidth() * getSampling();
         int h = drawable.getIntrinsicHeight() * getSampling();
         if (w<1||h<1) {
-            synchronized (this) {
-                mIsError = true;
-            }
+            initialLoading().fail();
             invalidateSelfOnUiThread();
             return;
         }
@@ -496,14 +831,15 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
         int dH;
         int sX;
         int sY;
+        Rect scratch;
         switch (mScaleType) {
             case NONE:
                 drawable.setBounds(mBounds);
                 break;
             case FILL: // combination of center_crop and scale_fit
-                Rect result = new Rect();
-                calcCenter(mBounds.width(),mBounds.height(),w,h,false,result);
-                drawable.setBounds(result.left,result.top,result.right,result.bottom);
+                scratch = sScratchRect.get();
+                calcCenter(mBounds.width(),mBounds.height(),w,h,false,scratch);
+                drawable.setBounds(scratch);
                 break;
             case CENTER_CROP:
                 dW = mBounds.width() - w;
@@ -513,9 +849,9 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
                 drawable.setBounds(mBounds.left+sX,mBounds.top+sY,mBounds.right-sX, mBounds.bottom-sY);
                 break;
             case SCALE_FIT:
-                result = new Rect();
-                calcCenter(mBounds.width(),mBounds.height(),w,h,true    ,result);
-                drawable.setBounds(result.left,result.top,result.right,result.bottom);
+                scratch = sScratchRect.get();
+                calcCenter(mBounds.width(),mBounds.height(),w,h,true,scratch);
+                drawable.setBounds(scratch);
                 break;
         }
     }
@@ -535,23 +871,18 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @return loaded drawable, and set internal reference to null
      */
 
-    public synchronized Drawable takeDrawable() {
-        if (mDrawable==null) return null;
-        mDrawable.setCallback(null); // remove callbacks
-        Drawable result = mDrawable;
-        mDrawable = null;
+    public Drawable takeDrawable() {
+        Drawable result = sDrawableUpdater.getAndSet(this, null);
+        if (result==null) return null;
+        result.setCallback(null); // remove callbacks
+        initialLoading().reset();
         return result;
     }
 
-    private Paint dbgPaintRed = new Paint();
-    {
-        dbgPaintRed.setStyle(Paint.Style.STROKE);
-        dbgPaintRed.setColor(Color.RED);
-    }
     private void drawDrawable(Canvas canvas, Drawable drawable) {
         int state = canvas.save();
         if (LazyDrawable.DEBUG)
-            canvas.drawRect(mBounds,dbgPaint);
+            canvas.drawRect(mBounds,getDebugPaint());
         canvas.clipRect(mBounds);
         if (drawable!=null) {
             drawable.draw(canvas);
@@ -569,24 +900,37 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
     private int mVerticalEdgeSize = 24;
     private int mHorizontalEdgeSize = 24;
 
-    private Paint mEdgePaint = new Paint();
-    {
-        mEdgePaint.setStyle(Paint.Style.FILL);
+    /* shared by all drawables: shader are set before every edge drawn (UI thread) */
+    private static final Paint sEdgePaint = new Paint();
+    static {
+        sEdgePaint.setStyle(Paint.Style.FILL);
     }
 
+    /* edge gradients depends only on bounds and edge color - rebuilt when changed (created with first CENTER_CROP edges) */
+    private Shader[] mVerticalEdgeShaders = null;
+    private Shader[] mHorizontalEdgeShaders = null;
+    private int mVerticalEdgeKey;
+    private int mVerticalEdgeColor;
+    private int mHorizontalEdgeKey;
+    private int mHorizontalEdgeColor;
+
     /**
      * internal methods to draw edges
      * @param canvas
      */
     private void drawVerticalEdges(Canvas canvas) {
-        Shader shader;
-        shader = new LinearGradient(0, 0, 0, mVerticalEdgeSize, mEdgeColor, Color.TRANSPARENT, Shader.TileMode.CLAMP);
-        mEdgePaint.setShader(shader);
-        canvas.drawRect(0, 0, mBounds.right, 0 + mVerticalEdgeSize, mEdgePaint);
+        if (mVerticalEdgeShaders==null) mVerticalEdgeShaders = new Shader[2];
+        if (mVerticalEdgeShaders[0]==null || mVerticalEdgeKey!=mBounds.bottom || mVerticalEdgeColor!=mEdgeColor) {
+            mVerticalEdgeShaders[0] = new LinearGradient(0, 0, 0, mVerticalEdgeSize, mEdgeColor, Color.TRANSPARENT, Shader.TileMode.CLAMP);
+            mVerticalEdgeShaders[1] = new LinearGradient(0, mBounds.bottom-mVerticalEdgeSize, 0, mBounds.bottom, Color.TRANSPARENT, mEdgeColor, Shader.TileMode.CLAMP);
+            mVerticalEdgeKey = mBounds.bottom;
+            mVerticalEdgeColor = mEdgeColor;
+        }
+        sEdgePaint.setShader(mVerticalEdgeShaders[0]);
+        canvas.drawRect(0, 0, mBounds.right, 0 + mVerticalEdgeSize, sEdgePaint);
 
-        shader = new LinearGradient(0, mBounds.bottom-mVerticalEdgeSize, 0, mBounds.bottom, Color.TRANSPARENT, mEdgeColor, Shader.TileMode.CLAMP);
-        mEdgePaint.setShader(shader);
-        canvas.drawRect(0, mBounds.bottom - mVerticalEdgeSize, mBounds.right, mBounds.bottom, mEdgePaint);
+        sEdgePaint.setShader(mVerticalEdgeShaders[1]);
+        canvas.drawRect(0, mBounds.bottom - mVerticalEdgeSize, mBounds.right, mBounds.bottom, sEdgePaint);
     }
 
     /**
@@ -594,14 +938,18 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @param canvas
      */
     private void drawHorizontalEdges(Canvas canvas) {
-        Shader shader;
-        shader = new LinearGradient(0, 0, mHorizontalEdgeSize, 0, mEdgeColor, Color.TRANSPARENT, Shader.TileMode.CLAMP);
-        mEdgePaint.setShader(shader);
-        canvas.drawRect(0, 0, mHorizontalEdgeSize, mBounds.bottom, mEdgePaint);
+        if (mHorizontalEdgeShaders==null) mHorizontalEdgeShaders = new Shader[2];
+        if (mHorizontalEdgeShaders[0]==null || mHorizontalEdgeKey!=mBounds.right || mHorizontalEdgeColor!=mEdgeColor) {
+            mHorizontalEdgeShaders[0] = new LinearGradient(0, 0, mHorizontalEdgeSize, 0, mEdgeColor, Color.TRANSPARENT, Shader.TileMode.CLAMP);
+            mHorizontalEdgeShaders[1] = new LinearGradient(mBounds.right-mHorizontalEdgeSize, 0, mBounds.right, 0, Color.TRANSPARENT, mEdgeColor, Shader.TileMode.CLAMP);
+            mHorizontalEdgeKey = mBounds.right;
+            mHorizontalEdgeColor = mEdgeColor;
+        }
+        sEdgePaint.setShader(mHorizontalEdgeShaders[0]);
+        canvas.drawRect(0, 0, mHorizontalEdgeSize, mBounds.bottom, sEdgePaint);
 
-        shader = new LinearGradient(mBounds.right-mHorizontalEdgeSize, 0, mBounds.right, 0, Color.TRANSPARENT, mEdgeColor, Shader.TileMode.CLAMP);
-        mEdgePaint.setShader(shader);
-        canvas.drawRect(mBounds.right - mHorizontalEdgeSize, 0, mBounds.right, mBounds.bottom, mEdgePaint);
+        sEdgePaint.setShader(mHorizontalEdgeShaders[1]);
+        canvas.drawRect(mBounds.right - mHorizontalEdgeSize, 0, mBounds.right, mBounds.bottom, sEdgePaint);
     }
 
     /**
@@ -610,21 +958,21 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @param canvas
      */
     protected void drawLoadError(Canvas canvas) {
-        drawProgress(canvas, mErrorDrawable, 0, 255);
+        drawProgress(canvas, getErrorDrawable(), 0, 255);
     }
 
-    private int angle = 0;
+    /* spinner speed: one degree per 6ms */
+    private static final int SPINNER_MILLIS_PER_DEGREE = 6;
 
     /**
-     * just draws loadingDrawable on canvas and increments angle
-     * (override to implement custom loading animation)
+     * just draws loadingDrawable on canvas, rotated by angle from shared animation clock
+     * (override to implement custom loading animation, see {@link AnimationClock#getFrameTime()})
      * @param canvas
      */
     protected void drawNextLoadingFrame(Canvas canvas) {
-        Drawable progress = mLoadingDrawable;
+        Drawable progress = getLoadingDrawable();
         if (progress!=null) {
-            angle += 10;
-            if (angle>360) angle = 0;
+            int angle = (int) ((AnimationClock.getInstance().getFrameTime() / SPINNER_MILLIS_PER_DEGREE) % 360);
             drawProgress(canvas, progress, angle, 255);
         }
     }
@@ -672,38 +1020,34 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
 
     @Override
     public int getOpacity() {
-        synchronized (this) {
-            if (mDrawable!=null)
-                return mDrawable.getOpacity();
-            else
-                return mOpacity;
-        }
+        Drawable d = mDrawable;
+        if (d!=null)
+            return d.getOpacity();
+        else
+            return mOpacity;
     }
 
     @Override
     public void start() {
-        synchronized (this) {
-            if (mDrawable instanceof Animatable) {
-                ((Animatable)mDrawable).start();
-            }
+        Drawable d = mDrawable;
+        if (d instanceof Animatable) {
+            ((Animatable)d).start();
         }
     }
 
     @Override
     public void stop() {
-        synchronized (this) {
-            if (mDrawable instanceof Animatable) {
-                ((Animatable)mDrawable).stop();
-            }
+        Drawable d = mDrawable;
+        if (d instanceof Animatable) {
+            ((Animatable)d).stop();
         }
     }
 
     @Override
     public boolean isRunning() {
-        synchronized (this) {
-            if (mDrawable instanceof Animatable) {
-                return ((Animatable)mDrawable).isRunning();
-            }
+        Drawable d = mDrawable;
+        if (d instanceof Animatable) {
+            return ((Animatable)d).isRunning();
         }
         return false;
     }
@@ -716,25 +1060,55 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
     protected void onDrawableReleased(Drawable drawable) {
         if (drawable==null) return;
         drawable.setCallback(null);
-        if (drawable instanceof BitmapDrawable) {
+        if (drawable instanceof BitmapHandleDrawable) {
+            ((BitmapHandleDrawable) drawable).getHandle().release(); // shared bitmap - drop own reference
+        } else if (drawable instanceof BitmapDrawable) {
             Bitmap bmp = ((BitmapDrawable)drawable).getBitmap();
             recycleBitmap(bmp);
+        } else if (drawable instanceof GifDrawableCompat) {
+            ((GifDrawableCompat) drawable).release(); // frames returned to BitmapPool
+        }
+    }
+
+    /**
+     * run on UI thread with next message (never synchronously, so safe to call from draw())
+     * @param runnable
+     */
+    protected void postToUiThread(Runnable runnable) {
+        sMainHandler.post(runnable);
+    }
+
+    /**
+     * release drawable, which was published (may be drawn right now): on UI thread, between frames
+     * @param drawable
+     */
+    protected void releaseDrawableOnUiThread(final Drawable drawable) {
+        if (drawable==null) return;
+        if (Looper.getMainLooper().getThread().equals(Thread.currentThread())) {
+            onDrawableReleased(drawable);
+        } else {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDrawableReleased(drawable);
+                }
+            });
         }
     }
 
     /**
      * called when bitmap no more required. MUST OVERRIDE if some caching system for bitmaps used
+     * (default - return bitmap to BitmapPool for reuse)
      * @param bmp
      */
     protected void recycleBitmap(Bitmap bmp) {
-        if (bmp!=null && !bmp.isRecycled())
-            bmp.recycle();
+        BitmapPool.put(bmp);
     }
 
     /**
      * called when loading finished
      */
-    protected synchronized void handleLoadFinish() {
+    protected void handleLoadFinish() {
         invalidateSelfOnUiThread();
     }
 
@@ -743,19 +1117,33 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * @param drawable
      */
   //  @CallSuper
-    protected synchronized void setDrawable(Drawable drawable) {
-        if (mDrawable!=null && isRunning()) {
-            mDrawable.setCallback(null); // remove callbacks from drawable
-            onDrawableReleased(mDrawable);
-            stop();
-        }
-        mDrawable = drawable;
+    protected void setDrawable(Drawable drawable) {
+        replaceDrawable(drawable);
+    }
 
-        if (mDrawable!=null) {
-            setSize(mDrawable.getIntrinsicWidth(),mDrawable.getIntrinsicHeight());
+    /**
+     * setDrawable() implementation
+     * @param drawable
+     * @return true, if replaced drawable was released (running animation)
+     */
+    boolean replaceDrawable(Drawable drawable) {
+        int boundsVersion = mBoundsVersion;
+        if (drawable!=null) { // prepare before publishing
+            setSize(drawable.getIntrinsicWidth(),drawable.getIntrinsicHeight());
             applyBounds(drawable);
-            mDrawable.setCallback(this);
+            drawable.setCallback(this);
         }
+        Drawable old = sDrawableUpdater.getAndSet(this, drawable);
+        boolean released = false;
+        if (old!=null && old!=drawable && old instanceof Animatable && ((Animatable)old).isRunning()) {
+            old.setCallback(null); // remove callbacks from drawable
+            ((Animatable)old).stop();
+            releaseDrawableOnUiThread(old); // may be drawn or advanced by animation clock right now
+            released = true;
+        }
+        if (drawable!=null && boundsVersion!=mBoundsVersion)
+            applyBounds(drawable); // setBounds() was called while drawable prepared
+        return released;
     }
 
     @Override
@@ -768,70 +1156,239 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      *
      * @return loaded drawable
      */
-    protected synchronized Drawable getDrawable() { return mDrawable; }
+    protected Drawable getDrawable() { return mDrawable; }
     protected void invalidateSelfOnUiThread() {
         if (Looper.getMainLooper().getThread().equals(Thread.currentThread())) {
             invalidateSelf();
         } else {
-            new Handler(Looper.getMainLooper()).post(new Runnable() {
-                @Override
-                public void run() {
-                    LazyDrawable.this.invalidateSelf();
-                }
-            });
+            InvalidationDispatcher.invalidate(this); // coalesced with other drawables
         }
     }
 
     /**
-     * abstract runnable with support cancellation
+     * check from readDrawable() implementations, if running load was cancelled
+     * @return true if load, running on current thread, cancelled
      */
-    protected abstract class LoadingRunnable extends ComparableRunnable {
-        public abstract void onExecutionFailed(Throwable t);
-        public abstract void cancel();
-        public abstract void uncancel();
-        public abstract boolean isRunning();
+    protected static boolean isLoadCancelled() {
+        LoadCancellation cancellation = LoadCancellation.current();
+        return cancellation!=null && cancellation.isCancelled();
     }
 
     /**
-     * ThreadPoolExecutor with global cancellation support
+     * abstract runnable with support cancellation
      */
-    protected static class CustomThreadPoolExecutor extends ThreadPoolExecutor {
-        private boolean mIsCancelled = false;
-        public CustomThreadPoolExecutor(
-                int corePoolSize, int maximumPoolSize, long keepAliveTime,
-                TimeUnit unit, BlockingQueue<Runnable> workQueue) {
-            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
+    protected abstract class LoadingRunnable extends ComparableRunnable {
+        private final AtomicReference<LoadState> mState = new AtomicReference<LoadState>(LoadState.IDLE);
+        private volatile LoadCancellation mCancellation = null;
+        /* outcome of last run() for concurrency limiter (loader thread only) */
+        private LoadState mOutcome = null;
+        private boolean mSampled = false;
+        public abstract void onExecutionFailed(Throwable t);
+
+        /**
+         * load drawable (background thread)
+         * @return drawable, or null on error
+         */
+        protected abstract Drawable doLoad();
+
+        /**
+         * called after doLoad() returns drawable, if not cancelled
+         * @param d
+         */
+        protected abstract void onLoaded(Drawable d);
+
+        /**
+         * called after doLoad() returns null, if not cancelled
+         */
+        protected abstract void onLoadFailed();
+
+        /**
+         * called when load cancelled after drawable was created
+         * @param d
+         */
+        protected void onDiscarded(Drawable d) {
+            onDrawableReleased(d);
         }
 
-        @Override
-        protected void beforeExecute(Thread t, Runnable r) {
-            super.beforeExecute(t, r);
-            if (mIsCancelled) getQueue().clear();
+        /**
+         * false if duration of this runnable does not represent source latency (no I/O and decoding
+         * expected), such runs are not reported to concurrency limiter
+         * @return true by default
+         */
+        protected boolean isSampled() { return true; }
+
+        /**
+         * exclude current run from concurrency limiter samples (for example, result was already in memory)
+         * must be called from doLoad()
+         */
+        protected void skipSample() { mSampled = false; }
+
+        /**
+         * outcome of last run(), called by executor right after run() returns
+         * @return READY or ERROR, or null if run was cancelled or not sampled
+         */
+        LoadState takeOutcome() {
+            LoadState outcome = mSampled ? mOutcome : null;
+            mOutcome = null;
+            return outcome;
         }
 
         @Override
-        public void execute(Runnable command) {
-            if (!mIsCancelled)
-                super.execute(command);
+        public final void run() {
+            mOutcome = null;
+            mSampled = isSampled();
+            if (!mState.compareAndSet(LoadState.QUEUED, LoadState.LOADING)) {
+                mState.compareAndSet(LoadState.CANCELLED, LoadState.IDLE); // cancelled while queued
+                return;
+            }
+            LoadCancellation cancellation = beginLoad();
+            if (mState.get()==LoadState.CANCELLED)
+                cancellation.cancel(); // cancel() was called before cancellation attached
+            Drawable d = null;
+            try {
+                d = doLoad();
+            } catch (RuntimeException e) {
+                if (!cancellation.isCancelled()) {
+                    finish(LoadState.ERROR);
+                    throw e;
+                }
+            } finally {
+                endLoad(cancellation);
+            }
+            LoadState result = d!=null ? LoadState.READY : LoadState.ERROR;
+            if (!finish(result)) { // cancelled while running - discard result
+                if (d!=null) onDiscarded(d);
+                return;
+            }
+            mOutcome = result;
+            if (d!=null)
+                onLoaded(d);
+            else
+                onLoadFailed();
         }
 
-        @Override
-        public Future<?> submit(Runnable task) {
-            return super.submit(task);
+        /**
+         * leave LOADING state
+         * @return false if load was cancelled (state becomes IDLE)
+         */
+        private boolean finish(LoadState result) {
+            for (;;) {
+                LoadState state = mState.get();
+                if (state==LoadState.CANCELLED) {
+                    mState.compareAndSet(LoadState.CANCELLED, LoadState.IDLE);
+                    return false;
+                }
+                if (mState.compareAndSet(state, result)) return true;
+            }
         }
 
-        @Override
-        public void afterExecute(Runnable r, Throwable t) {
-            super.afterExecute(r, t);
-            if (t != null && r instanceof LoadingRunnable) {
-                LoadingRunnable lr = (LoadingRunnable)r;
-                lr.onExecutionFailed(t);
+        public LoadState getState() { return mState.get(); }
+
+        /**
+         * IDLE -&gt; QUEUED, must be called before runnable passed to executor
+         * @return false if runnable already queued, loading or finished
+         */
+        boolean enqueue() {
+            return mState.compareAndSet(LoadState.IDLE, LoadState.QUEUED);
+        }
+
+        /**
+         * IDLE -&gt; READY, result obtained without execution (memory hit)
+         * @return false if runnable already queued, loading or finished
+         */
+        boolean complete() {
+            return mState.compareAndSet(LoadState.IDLE, LoadState.READY);
+        }
+
+        /**
+         * runnable removed from executor without execution
+         */
+        void dequeued() {
+            if (!mState.compareAndSet(LoadState.QUEUED, LoadState.IDLE))
+                mState.compareAndSet(LoadState.CANCELLED, LoadState.IDLE);
+        }
+
+        /**
+         * READY or ERROR -&gt; IDLE (allow new load)
+         */
+        protected void reset() {
+            if (!mState.compareAndSet(LoadState.READY, LoadState.IDLE))
+                mState.compareAndSet(LoadState.ERROR, LoadState.IDLE);
+        }
+
+        /**
+         * ERROR -&gt; IDLE
+         */
+        protected void clearError() {
+            mState.compareAndSet(LoadState.ERROR, LoadState.IDLE);
+        }
+
+        /**
+         * mark load as failed (unless cancelled)
+         */
+        protected void fail() {
+            for (;;) {
+                LoadState state = mState.get();
+                if (state==LoadState.CANCELLED || state==LoadState.ERROR) return;
+                if (mState.compareAndSet(state, LoadState.ERROR)) return;
             }
         }
 
-        @Override
-        public void terminated() {
-            super.terminated();
+        /**
+         * must be called by run() before readDrawable(): attach new cancellation to loader thread
+         * @return cancellation for this run
+         */
+        protected LoadCancellation beginLoad() {
+            LoadCancellation cancellation = new LoadCancellation();
+            mCancellation = cancellation;
+            cancellation.attach();
+            return cancellation;
+        }
+
+        protected void endLoad(LoadCancellation cancellation) {
+            cancellation.detach();
+            mCancellation = null;
+        }
+
+        /**
+         * abort running load (closes registered streams, cancels decoding)
+         */
+        protected void abortLoad() {
+            LoadCancellation cancellation = mCancellation;
+            if (cancellation!=null) cancellation.cancel();
+        }
+
+        /**
+         * called when executor dropped runnable because of overload (runnable are not queued anymore)
+         */
+        public void onShed() {}
+
+        /**
+         * called when executor did not queue just submitted runnable because of overload
+         * (queue are full of loads with same or higher priority); default calls onShed()
+         */
+        public void onRejected() { onShed(); }
+
+        /**
+         * cancel queued or running load
+         */
+        public void cancel() {
+            for (;;) {
+                LoadState state = mState.get();
+                if (state!=LoadState.QUEUED && state!=LoadState.LOADING) return;
+                if (mState.compareAndSet(state, LoadState.CANCELLED)) {
+                    if (state==LoadState.LOADING) abortLoad();
+                    return;
+                }
+            }
+        }
+
+        public void uncancel() {
+            mState.compareAndSet(LoadState.CANCELLED, LoadState.IDLE);
+        }
+
+        public boolean isRunning() {
+            return mState.get()==LoadState.LOADING;
         }
     }
 
@@ -839,32 +1396,107 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * retry loading drawable (if previous attemt failed with error)
      */
     @Deprecated
-    protected synchronized void retry() {
-        mIsError = false;
-        mInitialLoadingRunnable.uncancel();
+    protected void retry() {
+        LoadingRunnable r = mInitialLoadingRunnable;
+        if (r==null) return;
+        r.reset();
+        r.uncancel();
     }
 
     /**
      * initiate loading (by default - called with first drawing request)
      */
     @Override
-    public synchronized void load() {
-        if (mDrawable!=null||isLoading()) return;
-        ThreadPoolExecutor executor = getExecutor();
-        if (executor.getQueue().contains(mInitialLoadingRunnable)) return;
-        try {
-            executor.execute(mInitialLoadingRunnable);
-        } catch (RejectedExecutionException e) {
-            Log.e(TAG,"too mach task!");
-            handleLoadError();
+    public void load() {
+        if (mDrawable!=null) return;
+        if (loadFromMemory()) return;
+        LoadingRunnable r = initialLoading();
+        if (!r.enqueue()) return; // queued, loading, or failed
+        getExecutor().execute(r);
+    }
+
+    /**
+     * fast path: install drawable synchronously, if peekMemoryCache() has it
+     * @return true if drawable installed
+     */
+    private boolean loadFromMemory() {
+        if (initialState()!=LoadState.IDLE) return false;
+        Drawable d = peekMemoryCache();
+        if (d==null) return false;
+        if (!initialLoading().complete()) { // load started concurrently (prefetcher, loadAll)
+            onDrawableReleased(d);
+            return false;
         }
+        setDrawable(d);
+        handleLoadFinish();
+        return true;
     }
 
     /**
      * cancel loading
      */
-    public synchronized void stopLoading() {
-        mInitialLoadingRunnable.cancel();
+    public void stopLoading() {
+        cancelLoading(mInitialLoadingRunnable);
+        cancelLoading(mPrefetchRunnable);
+    }
+
+    /**
+     * initiate loading for collection of drawables (for example, all spans of laid out page);
+     * drawables are queued per executor tag with single queue lock, priorities computed once
+     * @param drawables
+     */
+    public static void loadAll(Collection<? extends LazyDrawable> drawables) {
+        submitAll(drawables, false);
+    }
+
+    /**
+     * warm caches for collection of drawables without installing loaded drawables
+     * (see {@link #onPrefetch()}); later load() becomes cheaper
+     * @param drawables
+     */
+    public static void prefetch(Collection<? extends LazyDrawable> drawables) {
+        submitAll(drawables, true);
+    }
+
+    private static void submitAll(Collection<? extends LazyDrawable> drawables, boolean prefetchOnly) {
+        HashMap<Object,ArrayList<Runnable>> batches = new HashMap<Object, ArrayList<Runnable>>();
+        HashMap<Object,LazyDrawable> owners = new HashMap<Object, LazyDrawable>();
+        for (LazyDrawable d : drawables) {
+            if (d==null || !d.needsLoading()) continue;
+            ArrayList<Runnable> batch = batches.get(d.mExecutorTag);
+            if (batch==null) {
+                batch = new ArrayList<Runnable>();
+                batches.put(d.mExecutorTag, batch);
+                owners.put(d.mExecutorTag, d);
+            }
+            LoadingRunnable r = prefetchOnly ? d.prefetchLoading() : d.initialLoading();
+            if (!r.enqueue()) continue;
+            batch.add(r);
+        }
+        for (Map.Entry<Object,ArrayList<Runnable>> entry : batches.entrySet()) {
+            owners.get(entry.getKey()).getExecutor().executeAll(entry.getValue());
+        }
+    }
+
+    /**
+     *
+     * @return true if drawable not loaded and not loading
+     */
+    boolean needsLoading() {
+        return mDrawable==null && initialState()==LoadState.IDLE;
+    }
+
+    /**
+     * remove runnable from queue, or mark running runnable as cancelled
+     * @param runnable - runnable, or null (not created yet - nothing to cancel)
+     */
+    protected void cancelLoading(LoadingRunnable runnable) {
+        if (runnable==null) return;
+        if (getExecutor().remove(runnable)) {
+            runnable.dequeued();
+            return;
+        }
+        runnable.cancel();
     }
 
     /**
@@ -878,18 +1510,31 @@ public abstract class LazyDrawable extends Drawable implements Animatable, Drawa
      * for prioritized queue
      */
     static abstract class ComparableRunnable implements Runnable {
+        /* maintained by LoadingQueue under queue lock */
+        int mHeapIndex = -1;
+        long mSequence = 0;
+        private int mQueuedPriority = 0;
         public abstract int getPriority();
+
+        /**
+         * priority snapshot - queue ordering must not change while runnable are queued
+         */
+        void setQueuedPriority(int priority) { mQueuedPriority = priority; }
+        int getQueuedPriority() { return mQueuedPriority; }
     }
 
     /**
-     * compares priorities of two runnables
+     * compares priorities of two runnables (equal priorities - in FIFO order)
      */
     public static class RunnableComparator implements Comparator<Runnable> {
         public int compare(Runnable r1, Runnable r2){
             ComparableRunnable t1 = (ComparableRunnable)r1;
             ComparableRunnable t2 = (ComparableRunnable)r2;
-            if  (t1.getPriority()==t2.getPriority()) return -1;
-            return t1.getPriority()-t2.getPriority();
+            int p1 = t1.getQueuedPriority();
+            int p2 = t2.getQueuedPriority();
+            if (p1!=p2) return p1 < p2 ? -1 : 1;
+            if (t1.mSequence==t2.mSequence) return 0;
+            return t1.mSequence < t2.mSequence ? -1 : 1;
         }
     }
 
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * process-wide pool of loader threads, shared by all executor tags
+ *
+ * every tag are just a logical queue ({@link TagExecutor}); workers pick next tag by weighted
+ * fair share (stride scheduling): tags with less than corePoolSize active loads are served first,
+ * then tag with smallest pass, pass grows by STRIDE/weight per started load
+ */
+public final class LoaderPool {
+    private static final long KEEP_ALIVE = TimeUnit.SECONDS.toNanos(10);
+    private static final long STRIDE = 1L << 20;
+    private static final LoaderPool sInstance = new LoaderPool();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mWork = mLock.newCondition();
+    /* executors with queued runnables */
+    private final ArrayList<TagExecutor> mReady = new ArrayList<TagExecutor>();
+    private int mMaxThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private int mThreads = 0;
+    private int mIdle = 0;
+    private int mThreadNumber = 0;
+    private long mPass = 0;
+
+    private LoaderPool() {}
+
+    static LoaderPool getInstance() { return sInstance; }
+
+    /**
+     * set hard limit for loader threads (for all tags)
+     * @param maxThreads
+     */
+    public static void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be positive");
+        LoaderPool pool = sInstance;
+        pool.mLock.lock();
+        try {
+            pool.mMaxThreads = maxThreads;
+            pool.mWork.signalAll(); // let extra workers exit
+        } finally {
+            pool.mLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return hard limit for loader threads
+     */
+    public static int getMaxThreads() {
+        LoaderPool pool = sInstance;
+        pool.mLock.lock();
+        try {
+            return pool.mMaxThreads;
+        } finally {
+            pool.mLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return number of alive loader threads
+     */
+    public static int getThreadCount() {
+        LoaderPool pool = sInstance;
+        pool.mLock.lock();
+        try {
+            return pool.mThreads;
+        } finally {
+            pool.mLock.unlock();
+        }
+    }
+
+    /**
+     * called by TagExecutor after runnable queued
+     * @param executor
+     */
+    void signal(TagExecutor executor) {
+        signal(executor, 1);
+    }
+
+    /**
+     * called by TagExecutor after batch of runnables queued
+     * @param executor
+     * @param queued - number of queued runnables (workers to wake or start)
+     */
+    void signal(TagExecutor executor, int queued) {
+        mLock.lock();
+        try {
+            if (!mReady.contains(executor)) {
+                executor.mPass = Math.max(executor.mPass, mPass);
+                mReady.add(executor);
+            }
+            int woken = Math.min(queued, mIdle);
+            for (int i = 0; i < woken; i++)
+                mWork.signal();
+            for (int i = woken; i < queued && mThreads < mMaxThreads; i++)
+                startWorker();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * must be called with mLock held
+     * @return ready executor with smallest pass, which may start one more load
+     */
+    private TagExecutor pick() {
+        TagExecutor best = null;
+        boolean bestUnderCore = false;
+        for (int i = 0; i < mReady.size(); i++) {
+            TagExecutor e = mReady.get(i);
+            if (e.mActive >= e.getConcurrencyLimit()) continue;
+            boolean underCore = e.mActive < e.getCorePoolSize();
+            if (best == null
+                    || (underCore && !bestUnderCore)
+                    || (underCore == bestUnderCore && e.mPass < best.mPass)) {
+                best = e;
+                bestUnderCore = underCore;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * load of executor finished (its adaptive limit may be raised by this load too):
+     * wake idle workers for free slots of executor, if it has queued runnables
+     * (finishing worker takes one slot itself); must be called with mLock held
+     * @param executor
+     */
+    private void wakeForFreeSlots(TagExecutor executor) {
+        if (!mReady.contains(executor)) return;
+        int free = executor.getConcurrencyLimit() - executor.mActive - 1;
+        for (int i = 0; i < Math.min(free, mIdle); i++)
+            mWork.signal();
+    }
+
+    private void startWorker() {
+        mThreads++;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "LazyDrawable-loader-" + (++mThreadNumber));
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void work() {
+        for (;;) {
+            TagExecutor owner;
+            Runnable r;
+            mLock.lock();
+            try {
+                long nanos = KEEP_ALIVE;
+                for (;;) {
+                    if (mThreads > mMaxThreads) {
+                        mThreads--;
+                        return;
+                    }
+                    owner = pick();
+                    if (owner != null) {
+                        r = owner.poll();
+                        if (r != null) break;
+                        mReady.remove(owner);
+                        continue;
+                    }
+                    if (nanos <= 0) {
+                        mThreads--;
+                        return;
+                    }
+                    mIdle++;
+                    try {
+                        nanos = mWork.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        // keep working, loader threads are stopped only by idle timeout
+                    } finally {
+                        mIdle--;
+                    }
+                }
+                owner.mActive++;
+                mPass = owner.mPass;
+                owner.mPass += STRIDE / owner.getWeight();
+                if (mIdle == 0 && mThreads < mMaxThreads && pick() != null)
+                    startWorker();
+            } finally {
+                mLock.unlock();
+            }
+
+            try {
+                owner.runTask(r);
+            } finally {
+                mLock.lock();
+                try {
+                    owner.mActive--;
+                    wakeForFreeSlots(owner);
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+}
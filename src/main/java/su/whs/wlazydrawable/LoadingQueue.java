@@ -0,0 +1,465 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import su.whs.wlazydrawable.LazyDrawable.ComparableRunnable;
+
+/**
+ * indexed binary heap for loading runnables
+ *
+ * every queued runnable knows own slot in heap, so contains() are O(1),
+ * remove() and reprioritize() are O(log n);
+ * runnables with equal priorities are taken in FIFO order
+ *
+ * priorities are snapshotted outside queue lock - getPriority() may lock drawable
+ *
+ * queue may be bounded, see {@link #replaceLowest(ComparableRunnable)} for overload handling
+ */
+final class LoadingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final int mCapacity;
+    private final LazyDrawable.RunnableComparator mComparator = new LazyDrawable.RunnableComparator();
+    private ComparableRunnable[] mHeap = new ComparableRunnable[16];
+    private int mSize = 0;
+    private long mSequence = 0;
+
+    LoadingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity - max number of queued runnables
+     */
+    LoadingQueue(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        mCapacity = capacity;
+    }
+
+    private static ComparableRunnable cast(Object o) {
+        if (!(o instanceof ComparableRunnable))
+            throw new ClassCastException("LoadingQueue accepts only LazyDrawable.ComparableRunnable");
+        return (ComparableRunnable) o;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        ComparableRunnable r = cast(runnable);
+        int priority = r.getPriority();
+        mLock.lock();
+        try {
+            if (isQueued(r)) return true; // already in queue
+            if (mSize >= mCapacity) return false;
+            insert(r, priority);
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        offer(runnable, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        ComparableRunnable r = cast(runnable);
+        int priority = r.getPriority();
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            if (isQueued(r)) return true;
+            while (mSize >= mCapacity) {
+                if (nanos <= 0) return false;
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            insert(r, priority);
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * insert batch of runnables with single lock acquisition
+     * (priorities are computed before lock, once per runnable)
+     * @param runnables - runnables to insert
+     * @param rejected - receives runnables, which was not queued because queue are full
+     * @return number of inserted runnables
+     */
+    int offerAll(Collection<? extends Runnable> runnables, Collection<? super Runnable> rejected) {
+        int n = runnables.size();
+        ComparableRunnable[] batch = new ComparableRunnable[n];
+        int[] priorities = new int[n];
+        int i = 0;
+        for (Runnable runnable : runnables) {
+            ComparableRunnable r = cast(runnable);
+            batch[i] = r;
+            priorities[i] = r.getPriority();
+            i++;
+        }
+        int inserted = 0;
+        mLock.lock();
+        try {
+            for (i = 0; i < n; i++) {
+                ComparableRunnable r = batch[i];
+                if (isQueued(r)) continue;
+                if (mSize >= mCapacity) {
+                    rejected.add(r);
+                    continue;
+                }
+                insert(r, priorities[i]);
+                inserted++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return inserted;
+    }
+
+    /**
+     * insert runnable into full queue by replacing queued runnable with lowest priority
+     * @param r - runnable to insert
+     * @return runnable, that was not queued (replaced runnable, or r itself if it has lowest priority),
+     *   null if r inserted without replacing
+     */
+    ComparableRunnable replaceLowest(ComparableRunnable r) {
+        int priority = r.getPriority();
+        mLock.lock();
+        try {
+            if (isQueued(r)) return null;
+            if (mSize < mCapacity) {
+                insert(r, priority);
+                return null;
+            }
+            // lowest priority element is one of leaves
+            int lowest = mSize >>> 1;
+            for (int i = lowest + 1; i < mSize; i++) {
+                if (mComparator.compare(mHeap[i], mHeap[lowest]) > 0)
+                    lowest = i;
+            }
+            ComparableRunnable victim = mHeap[lowest];
+            if (victim.getQueuedPriority() <= priority) return r;
+            removeAt(lowest);
+            insert(r, priority);
+            return victim;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return mSize == 0 ? null : removeAt(0);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mSize == 0)
+                mNotEmpty.await();
+            return removeAt(0);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mSize == 0) {
+                if (nanos <= 0) return null;
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return removeAt(0);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            return mSize == 0 ? null : mHeap[0];
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return mCapacity - mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof ComparableRunnable)) return false;
+        mLock.lock();
+        try {
+            return isQueued((ComparableRunnable) o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof ComparableRunnable)) return false;
+        mLock.lock();
+        try {
+            ComparableRunnable r = (ComparableRunnable) o;
+            if (!isQueued(r)) return false;
+            removeAt(r.mHeapIndex);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * update priority of queued runnable
+     * @param r - runnable
+     * @return false if runnable are not queued
+     */
+    boolean reprioritize(ComparableRunnable r) {
+        int priority = r.getPriority();
+        mLock.lock();
+        try {
+            if (!isQueued(r)) return false;
+            r.setQueuedPriority(priority);
+            int i = r.mHeapIndex;
+            siftDown(i);
+            if (mHeap[i] == r) siftUp(i);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * recalculate priorities for all queued runnables and rebuild heap
+     */
+    void reprioritizeAll() {
+        ComparableRunnable[] snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ComparableRunnable[mSize];
+            System.arraycopy(mHeap, 0, snapshot, 0, mSize);
+        } finally {
+            mLock.unlock();
+        }
+        int[] priorities = new int[snapshot.length];
+        for (int i = 0; i < snapshot.length; i++)
+            priorities[i] = snapshot[i].getPriority();
+        mLock.lock();
+        try {
+            for (int i = 0; i < snapshot.length; i++) {
+                if (isQueued(snapshot[i]))
+                    snapshot[i].setQueuedPriority(priorities[i]);
+            }
+            for (int i = (mSize >>> 1) - 1; i >= 0; i--)
+                siftDown(i);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            for (int i = 0; i < mSize; i++) {
+                mHeap[i].mHeapIndex = -1;
+                mHeap[i] = null;
+            }
+            mSize = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        mLock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && mSize > 0) {
+                c.add(removeAt(0));
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        ComparableRunnable[] snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ComparableRunnable[mSize];
+            System.arraycopy(mHeap, 0, snapshot, 0, mSize);
+        } finally {
+            mLock.unlock();
+        }
+        return new Itr(snapshot);
+    }
+
+    private boolean isQueued(ComparableRunnable r) {
+        int i = r.mHeapIndex;
+        return i >= 0 && i < mSize && mHeap[i] == r;
+    }
+
+    private void insert(ComparableRunnable r, int priority) {
+        r.setQueuedPriority(priority);
+        r.mSequence = mSequence++;
+        if (mSize >= mHeap.length) grow();
+        mHeap[mSize] = r;
+        r.mHeapIndex = mSize;
+        mSize++;
+        siftUp(mSize - 1);
+        mNotEmpty.signal();
+    }
+
+    private void grow() {
+        ComparableRunnable[] heap = new ComparableRunnable[mHeap.length * 2];
+        System.arraycopy(mHeap, 0, heap, 0, mSize);
+        mHeap = heap;
+    }
+
+    private ComparableRunnable removeAt(int i) {
+        ComparableRunnable result = mHeap[i];
+        int last = --mSize;
+        if (i != last) {
+            ComparableRunnable moved = mHeap[last];
+            mHeap[i] = moved;
+            moved.mHeapIndex = i;
+            mHeap[last] = null;
+            siftDown(i);
+            if (mHeap[i] == moved) siftUp(i);
+        } else {
+            mHeap[last] = null;
+        }
+        result.mHeapIndex = -1;
+        mNotFull.signal();
+        return result;
+    }
+
+    private void siftUp(int i) {
+        ComparableRunnable r = mHeap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            ComparableRunnable p = mHeap[parent];
+            if (mComparator.compare(r, p) >= 0) break;
+            mHeap[i] = p;
+            p.mHeapIndex = i;
+            i = parent;
+        }
+        mHeap[i] = r;
+        r.mHeapIndex = i;
+    }
+
+    private void siftDown(int i) {
+        ComparableRunnable r = mHeap[i];
+        int half = mSize >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            ComparableRunnable c = mHeap[child];
+            int right = child + 1;
+            if (right < mSize && mComparator.compare(mHeap[right], c) < 0) {
+                child = right;
+                c = mHeap[child];
+            }
+            if (mComparator.compare(r, c) <= 0) break;
+            mHeap[i] = c;
+            c.mHeapIndex = i;
+            i = child;
+        }
+        mHeap[i] = r;
+        r.mHeapIndex = i;
+    }
+
+    private class Itr implements Iterator<Runnable> {
+        private final ComparableRunnable[] mSnapshot;
+        private int mCursor = 0;
+        private int mLastRet = -1;
+
+        Itr(ComparableRunnable[] snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mCursor < mSnapshot.length;
+        }
+
+        @Override
+        public Runnable next() {
+            if (mCursor >= mSnapshot.length) throw new NoSuchElementException();
+            mLastRet = mCursor;
+            return mSnapshot[mCursor++];
+        }
+
+        @Override
+        public void remove() {
+            if (mLastRet < 0) throw new IllegalStateException();
+            LoadingQueue.this.remove(mSnapshot[mLastRet]);
+            mLastRet = -1;
+        }
+    }
+}
@@ -22,6 +22,9 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import su.whs.images.BitmapHandle;
+import su.whs.images.BitmapHandleDrawable;
+import su.whs.images.BitmapPool;
 import su.whs.images.GifDrawableCompat;
 
 /**
@@ -34,15 +37,16 @@ import su.whs.images.GifDrawableCompat;
  */
 public abstract class PreviewDrawable extends LazyDrawable {
     private static final String TAG="PreviewDrawable";
-    private boolean mFullVersionLoaded = false;
+    private volatile boolean mFullVersionLoaded = false;
 
     public PreviewDrawable(Object executorTag, int srcWidth, int srcHeight) {
         super(executorTag, srcWidth, srcHeight, ScaleType.SCALE_FIT);
     }
 
-    private LoadingRunnable mFullLoadingRunnable = new LoadingRunnable() {
-        private boolean mCancelled = false;
-        private boolean mIsRunning = false;
+    /* created with first loadFullDrawable() (UI thread) */
+    private volatile LoadingRunnable mFullLoadingRunnable = null;
+
+    private class FullLoadingRunnable extends LoadingRunnable {
         @Override
         public int getPriority() {
             return PreviewDrawable.this.getLoadingPriority();
@@ -54,52 +58,54 @@ public abstract class PreviewDrawable extends LazyDrawable {
         }
 
         @Override
-        public synchronized void cancel() {
-            mCancelled = true;
-        }
-
-        @Override
-        public synchronized void uncancel() {
-            mCancelled = false;
+        protected Drawable doLoad() {
+            return getFullDrawable();
         }
 
         @Override
-        public synchronized boolean isRunning() {
-            return mIsRunning;
+        protected void onLoaded(Drawable full) {
+            Drawable preview = getDrawable();
+            setDrawable(full);
+            if (preview instanceof BitmapHandleDrawable && preview!=full)
+                releaseDrawableOnUiThread(preview); // drop reference of (shared) preview bitmap
+            mFullVersionLoaded = true;
+            handleLoadFinish();
         }
 
         @Override
-        public void run() {
-            boolean _cancelled = false;
-            synchronized (this) { _cancelled = mCancelled; }
-            if (_cancelled) { uncancel(); return; }
-            Drawable full = null;
-            try {
-                synchronized (this) { mIsRunning = true; }
-                full = getFullDrawable();
-            } finally {
-                synchronized (this) { mIsRunning = false; }
-            }
-            if (full!=null) {
-                synchronized (PreviewDrawable.this) {
-                    setDrawable(full);
-                    mFullVersionLoaded = true;
-                }
-                handleLoadFinish();
-            } else {
-                handleLoadErrorOnFullDrawable();
-            }
+        protected void onLoadFailed() {
+            handleLoadErrorOnFullDrawable();
         }
-    };
+    }
 
     public void loadFullDrawable() {
         if (super.isLoading())
             super.stopLoading();
         super.setError(false);
-        getExecutor().execute(mFullLoadingRunnable);
+        LoadingRunnable r = mFullLoadingRunnable;
+        if (r==null)
+            mFullLoadingRunnable = r = new FullLoadingRunnable();
+        r.reset(); // full version may be loaded again after resampleToBounds()
+        if (r.enqueue())
+            getExecutor().execute(r);
         invalidateSelf();
     }
 
+    /**
+     * cancel preview and full size loading
+     */
+    @Override
+    public void stopLoading() {
+        super.stopLoading();
+        cancelLoading(mFullLoadingRunnable);
+    }
+
+    @Override
+    public void Unload() {
+        cancelLoading(mFullLoadingRunnable);
+        super.Unload();
+    }
+
     /**
      * swap readDrawable() with getPreviewDrawable()/getFullDrawable() methods
      * @return
@@ -143,7 +149,8 @@ public abstract class PreviewDrawable extends LazyDrawable {
      */
     @Override
     public boolean isLoading() {
-        return super.isLoading() || mFullLoadingRunnable.isRunning();
+        LoadingRunnable r = mFullLoadingRunnable;
+        return super.isLoading() || (r!=null && r.isRunning());
     }
 
     protected void handleLoadErrorOnFullDrawable() {
@@ -163,14 +170,17 @@ public abstract class PreviewDrawable extends LazyDrawable {
      * useful to reduce memory pressure if drawable actual bounds are less than full size version bounds
      */
     public void resampleToBounds() {
+        Drawable old = getDrawable();
+        if (old==null) return; // not loaded (or unloaded)
         Rect bounds = new Rect();
         getWrappedDrawableBounds(bounds);
-        Bitmap bmp = Bitmap.createBitmap(bounds.width(),bounds.height(), Bitmap.Config.RGB_565);
+        if (bounds.isEmpty()) return;
+        Bitmap bmp = BitmapPool.obtain(bounds.width(),bounds.height(), Bitmap.Config.RGB_565);
         Canvas canvas = new Canvas(bmp);
         canvas.translate(-bounds.left,-bounds.top);
-        getDrawable().draw(canvas);
-        BitmapDrawable bitmapDrawable = new BitmapDrawable(Resources.getSystem(),bmp);
-        setDrawable(bitmapDrawable);
+        old.draw(canvas);
+        if (!replaceDrawable(new BitmapHandleDrawable(Resources.getSystem(), new BitmapHandle(bmp))))
+            releaseDrawableOnUiThread(old); // full size bitmap goes to BitmapPool (when not shared)
         mFullVersionLoaded = false;
     }
 }
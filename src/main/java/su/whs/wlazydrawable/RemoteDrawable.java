@@ -18,22 +18,33 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import su.whs.images.BitmapHandle;
+import su.whs.images.BitmapHandleDrawable;
+import su.whs.images.BitmapKey;
+import su.whs.images.BitmapPool;
+import su.whs.images.ByteBufferInputStream;
+import su.whs.images.DecodeStage;
+import su.whs.images.DecodedImage;
+import su.whs.images.DecodedImageCache;
+import su.whs.images.EncodedImageCache;
 import su.whs.images.GifDecoder;
 import su.whs.images.GifDrawableCompat;
+import su.whs.images.LoadCancellation;
 import su.whs.images.MemoryLimitPool;
+import su.whs.images.SingleFlight;
 
 
 /**
@@ -53,6 +64,14 @@ public abstract class RemoteDrawable extends PreviewDrawable {
     /* separate executor for gif loading */
     private static ThreadPoolExecutor gifExecutor = new ThreadPoolExecutor(1,1,1000L, TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(500));
     private static final String TAG = "RemoteDrawable";
+    /* concurrent loads of same url/sampling/config are executed once */
+    private static final SingleFlight<BitmapKey,DecodedImage> sLoads = new SingleFlight<BitmapKey,DecodedImage>() {
+        @Override
+        protected void onShared(BitmapKey key, DecodedImage value, int waiters) {
+            for (int i = 0; i < waiters; i++)
+                value.getHandle().acquire(); // reference for every attached drawable
+        }
+    };
     private String mUrl;
     private String mFullUrl;
     private boolean mFullVersionLoaded = false;
@@ -84,8 +103,37 @@ public abstract class RemoteDrawable extends PreviewDrawable {
     }
 
     protected int getSampling() { return mStreamSampling; }
+
+    /**
+     * loader threads only fetch bytes (decoding runs in DecodeStage, sized to CPU cores),
+     * so pool may be wider than for cpu-bound work
+     * @return executor pool size
+     */
+    @Override
+    protected int getExecutorPoolSize() { return 4; }
+
+    @Override
+    protected int getExecutorMaxPoolSize() { return 16; }
+
+    /**
+     * source image geometry known
+     * WARNING: called from loader thread (see {@link #onSizeFromMemory(int, int)} for memory cache hit)
+     * @param width
+     * @param height
+     */
     protected abstract void onSizeDecoded(int width, int height);
 
+    /**
+     * source image geometry known from memory cache, drawable already installed by draw() (UI thread);
+     * called from UI thread after draw pass, so host may be relaid out
+     * default implementation calls onSizeDecoded()
+     * @param width
+     * @param height
+     */
+    protected void onSizeFromMemory(int width, int height) {
+        onSizeDecoded(width, height);
+    }
+
     public RemoteDrawable(Context context, String previewUrl, String fullUrl, String mime, int widht, int height) {
         this(context, previewUrl, mime, widht, height);
         mFullUrl = fullUrl;
@@ -118,12 +166,26 @@ public abstract class RemoteDrawable extends PreviewDrawable {
     }
 
     protected Drawable readGifPreview() throws IOException {
-        GifDecoder decoder = new GifDecoder();
+        final ByteBuffer data = fetch(mUrl);
+        final GifDecoder decoder = new GifDecoder();
+        LoadCancellation cancellation = LoadCancellation.current();
+        LoadCancellation.OnCancelListener listener = cancelOnAbort(cancellation, decoder);
         try {
-            decoder.read(getInputStream(mUrl), 0);
-            decoder.advance();
-            Bitmap frame = decoder.getNextFrame();
-            Drawable result = new BitmapDrawable(Resources.getSystem(),frame);
+            Bitmap frame = DecodeStage.decode(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    decoder.read(data);
+                    decoder.advance();
+                    Bitmap first = decoder.getNextFrame();
+                    decoder.recycle(true); // only first frame required
+                    return first;
+                }
+            }, cancellation);
+            if (decoder.isCancelled()) {
+                BitmapPool.put(frame);
+                return null;
+            }
+            Drawable result = new BitmapHandleDrawable(Resources.getSystem(), new BitmapHandle(frame));
             setDrawable(result);
             invalidateSelfOnUiThread();
             return result;
@@ -133,21 +195,53 @@ public abstract class RemoteDrawable extends PreviewDrawable {
         } catch (NullPointerException e) {
             Log.e(TAG,"GIF decoder error:"+e.toString());
             e.printStackTrace();
+        } finally {
+            if (listener!=null) cancellation.unregister(listener);
         }
         onLoadingError();
         return null;
     }
 
     private Drawable readFullGif() {
+        LoadCancellation cancellation = LoadCancellation.current();
+        LoadCancellation.OnCancelListener listener = null;
         try {
-            Drawable d = new GifDrawableCompat(getInputStream(mUrl));
+            final ByteBuffer data = fetch(mUrl);
+            final GifDecoder decoder = new GifDecoder();
+            listener = cancelOnAbort(cancellation, decoder);
+            Drawable d = DecodeStage.decode(new Callable<Drawable>() {
+                @Override
+                public Drawable call() {
+                    decoder.read(data);
+                    return decoder.isCancelled() ? null : new GifDrawableCompat(decoder);
+                }
+            }, cancellation);
+            if (d==null) return null;
             mFullVersionLoaded = true;
             return d;
         } catch (IOException e) {
             return null;
+        } finally {
+            if (listener!=null) cancellation.unregister(listener);
         }
     }
 
+    /**
+     * stop gif decoder at next block, when load cancelled
+     * @return registered listener, or null if no cancellation
+     */
+    private static LoadCancellation.OnCancelListener cancelOnAbort(LoadCancellation cancellation, final GifDecoder decoder) {
+        if (cancellation==null) return null;
+        LoadCancellation.OnCancelListener listener = new LoadCancellation.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                decoder.cancel();
+            }
+        };
+        cancellation.register(listener);
+        return listener;
+    }
+
     /**
      * readFullDrawable must returns high-quality version of image, or Animatable instance
      *
@@ -167,63 +261,201 @@ public abstract class RemoteDrawable extends PreviewDrawable {
     }
 
     /**
-     * workaround for cases, where getInputStream(url) returns stream without mark support
-     * @param bis
-     * @return
+     * prefetch: read encoded image into EncodedImageCache
      */
-    private boolean needReopen(BufferedInputStream bis) {
+    @Override
+    protected void onPrefetch() {
         try {
-            bis.reset();
+            fetch(mUrl);
         } catch (IOException e) {
-            return true;
+            if (!isLoadCancelled())
+                Log.w(TAG, "prefetch failed for url:"+mUrl+", "+e);
         }
-        return false;
     }
 
-    public Drawable readBitmap(String url) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.RGB_565;
+    /**
+     * I/O stage - read encoded image from EncodedImageCache, or from stream, returned by getInputStream(url)
+     * @param url
+     * @return encoded bytes (shared with EncodedImageCache, if cached)
+     * @throws IOException
+     */
+    private ByteBuffer fetch(String url) throws IOException {
+        ByteBuffer cached = EncodedImageCache.get(url);
+        if (cached!=null) return cached; // decode from memory, without I/O
+        LoadCancellation cancellation = LoadCancellation.current();
+        InputStream is = getInputStream(url);
+        if (is==null) {
+            throw new IOException("no input stream for url:"+url);
+        }
+        LoadCancellation.OnCancelListener listener = null;
         try {
-            InputStream is = getInputStream(url);
-            if (is==null) {
-                handleLoadError();
-                return null;
+            if (cancellation!=null) {
+                listener = cancellation.register(is); // abort blocked read
+                cancellation.throwIfCancelled();
             }
-            BufferedInputStream bis = new BufferedInputStream(is,16384);
-            bis.mark(16384);
-            options.inJustDecodeBounds = true;
-            Rect bounds = new Rect();
-            Bitmap bmp = BitmapFactory.decodeStream(bis, bounds, options);
-
-            final int outWidth = options.outWidth;
-            final int outHeight = options.outHeight;
-            onSizeDecoded(outWidth,outHeight);
-
-            if (needReopen(bis)) { // some android versions reads ALL stream when 'inJustDecodeBounds=true'
-                is.close();
-                bis = new BufferedInputStream(getInputStream(url),16384);
-            }
-            options.inJustDecodeBounds = false;
-            options.inSampleSize = getSampling();
-            bmp = BitmapFactory.decodeStream(bis,null,options);
-
-            bis.close();
+            byte[] data = DecodeStage.readBytes(is);
+            if (cancellation!=null) cancellation.throwIfCancelled();
+            return EncodedImageCache.put(url, data);
+        } finally {
+            if (listener!=null) cancellation.unregister(listener);
             is.close();
+        }
+    }
 
-            if (bmp!=null && bmp.getWidth()>0 && bmp.getHeight()>0) {
-                return new BitmapDrawable(Resources.getSystem(), bmp);
-            } else if (bmp==null) {
-                Log.e(TAG, "Bitmap Decode error from url:"+url);
-            } else {
-                Log.e(TAG, "Bitmap Wrong Geometry from url:"+url);
-            }
+    public Drawable readBitmap(String url) {
+        BitmapKey key = new BitmapKey(url, getSampling(), Bitmap.Config.RGB_565);
+        Drawable cached = toDrawable(DecodedImageCache.get(key));
+        if (cached!=null) return cached; // memory hit - no fetch, no decode
+        DecodeCall call = new DecodeCall(key);
+        DecodedImage decoded;
+        try {
+            decoded = sLoads.execute(key, call);
         } catch (IOException e) {
+            if (isLoadCancelled()) return null; // not an error
             Log.e(TAG,"Bitmap read Exception:"+e);
             handleLoadError();
+            return null;
+        }
+        if (decoded==null) return null;
+        if (!call.mExecuted) // result of load, started by another drawable (or cached)
+            onSizeDecoded(decoded.getWidth(), decoded.getHeight());
+        return new BitmapHandleDrawable(Resources.getSystem(), decoded.getHandle());
+    }
+
+    /**
+     * preview bitmap from decoded image cache (gif previews are not cached)
+     * @return drawable, or null
+     */
+    @Override
+    protected Drawable peekMemoryCache() {
+        if (mIsGif) return null;
+        BitmapKey key = new BitmapKey(mUrl, getSampling(), Bitmap.Config.RGB_565);
+        final DecodedImage cached = DecodedImageCache.probe(key); // miss counted by readBitmap()
+        if (cached==null) return null;
+        postToUiThread(new Runnable() { // not within draw()
+            @Override
+            public void run() {
+                onSizeFromMemory(cached.getWidth(), cached.getHeight());
+            }
+        });
+        return new BitmapHandleDrawable(Resources.getSystem(), cached.getHandle());
+    }
+
+    /**
+     * @param cached - image, acquired for this drawable (loader thread)
+     * @return drawable, owning reference
+     */
+    private Drawable toDrawable(DecodedImage cached) {
+        if (cached==null) return null;
+        onSizeDecoded(cached.getWidth(), cached.getHeight());
+        return new BitmapHandleDrawable(Resources.getSystem(), cached.getHandle());
+    }
+
+    /**
+     * fetch and decode bitmap (executed once for concurrent loads of same url)
+     * bytes are fetched on loader thread, decoded within DecodeStage
+     * @param key
+     * @return decoded bitmap (with one reference for caller), or null if decode error
+     * @throws IOException
+     */
+    private DecodedImage decodeBitmap(final BitmapKey key) throws IOException {
+        final LoadCancellation cancellation = LoadCancellation.current();
+        final ByteBuffer data = fetch(key.getUrl());
+        DecodedImage result = DecodeStage.decode(new Callable<DecodedImage>() {
+            @Override
+            public DecodedImage call() {
+                return decodeBitmap(key, data, cancellation);
+            }
+        }, cancellation);
+        if (result!=null)
+            DecodedImageCache.put(key, result); // work done - keep it, even if load cancelled
+        if (cancellation!=null && cancellation.isCancelled()) {
+            if (result!=null) result.getHandle().release();
+            cancellation.throwIfCancelled();
+        }
+        return result;
+    }
+
+    private DecodedImage decodeBitmap(BitmapKey key, ByteBuffer data, LoadCancellation cancellation) {
+        String url = key.getUrl();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = key.getConfig();
+        LoadCancellation.OnCancelListener listener = null;
+        if (cancellation!=null)
+            listener = cancellation.register(options); // BitmapFactory aborts decode
+        try {
+            return decodeBitmap(url, data, options, key.getSampleSize());
+        } finally {
+            if (listener!=null) cancellation.unregister(listener);
+        }
+    }
+
+    private DecodedImage decodeBitmap(String url, ByteBuffer data, BitmapFactory.Options options, int sampleSize) {
+        options.inJustDecodeBounds = true;
+        decode(data, options);
+
+        final int outWidth = options.outWidth;
+        final int outHeight = options.outHeight;
+        onSizeDecoded(outWidth,outHeight);
+
+        if (isCancelled(options)) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        BitmapPool.setInBitmap(options);
+        Bitmap bmp;
+        try {
+            bmp = decode(data, options);
+        } catch (IllegalArgumentException e) { // pooled bitmap can't be reused for this image
+            BitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bmp = decode(data, options);
+        }
+        if (options.inBitmap!=null && bmp!=options.inBitmap)
+            BitmapPool.put(options.inBitmap); // not used
+
+        if (bmp!=null && bmp.getWidth()>0 && bmp.getHeight()>0) {
+            return new DecodedImage(new BitmapHandle(bmp), outWidth, outHeight);
+        } else if (isCancelled(options)) {
+            return null;
+        } else if (bmp==null) {
+            Log.e(TAG, "Bitmap Decode error from url:"+url);
+        } else {
+            Log.e(TAG, "Bitmap Wrong Geometry from url:"+url);
         }
         return null;
     }
 
+    /**
+     * decode array-backed bytes as array, other buffers - as stream (without copying)
+     */
+    private static Bitmap decode(ByteBuffer data, BitmapFactory.Options options) {
+        if (data.hasArray())
+            return BitmapFactory.decodeByteArray(data.array(), data.arrayOffset(), data.limit(), options);
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(data.duplicate()), null, options);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isCancelled(BitmapFactory.Options options) {
+        return options.mCancel;
+    }
+
+    private class DecodeCall implements SingleFlight.Call<DecodedImage> {
+        private final BitmapKey mKey;
+        boolean mExecuted = false;
+
+        DecodeCall(BitmapKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public DecodedImage call() throws IOException {
+            DecodedImage cached = DecodedImageCache.get(mKey); // decoded by cancelled leader
+            if (cached!=null) return cached;
+            mExecuted = true;
+            return decodeBitmap(mKey);
+        }
+    }
+
     /* call loadFullImage and launch animation */
     @Override
     public void start() {
@@ -259,21 +491,43 @@ public abstract class RemoteDrawable extends PreviewDrawable {
         if (visible && mMemoryLimitPool!=null) mMemoryLimitPool.updateLruMark(mUrl,this); // move drawable on top of cache
     }
 
+    /**
+     * loaded drawable changes its weight in pool
+     */
+    @Override
+    protected void handleLoadFinish() {
+        super.handleLoadFinish();
+        if (mMemoryLimitPool!=null) mMemoryLimitPool.updateLruMark(mUrl,this);
+    }
+
     /**
      * initialize default state drawables (loading/error/placeholder)
      * @param context
      */
     private void setInfoDrawables(Context context) {
-        Drawable loading = context.getResources().getDrawable(R.mipmap.ic_progress_gray);
-        loading.setBounds(0, 0, loading.getIntrinsicWidth(), loading.getIntrinsicHeight());
-        setLoadingDrawable(loading);
-        loading = context.getResources().getDrawable(R.mipmap.ic_alert_gray);
-        loading.setBounds(0, 0, loading.getIntrinsicWidth(), loading.getIntrinsicHeight());
-        setErrorDrawable(loading);
-        loading = context.getResources().getDrawable(R.drawable.img_placeholder);
-        setPlaceholderDrawable(loading);
-        // loading = context.getResources().getDrawable(R.mipmap.ic_queued_gray);
-        // loading.setBounds(0, 0, loading.getIntrinsicWidth(), loading.getIntrinsicHeight());
+        Drawable.ConstantState[] info = getInfoDrawables(context);
+        setLoadingDrawableState(info[0]);
+        setErrorDrawableState(info[1]);
+        setPlaceholderDrawableState(info[2]);
+    }
+
+    /* states of default drawables, shared by all drawables of context (drawables are created on first use) */
+    private static final WeakHashMap<Context,Drawable.ConstantState[]> sInfoDrawables = new WeakHashMap<Context, Drawable.ConstantState[]>();
+
+    private static Drawable.ConstantState[] getInfoDrawables(Context context) {
+        synchronized (sInfoDrawables) {
+            Drawable.ConstantState[] info = sInfoDrawables.get(context);
+            if (info==null) {
+                Resources res = context.getResources();
+                // R.mipmap.ic_queued_gray not used
+                info = new Drawable.ConstantState[] {
+                        res.getDrawable(R.mipmap.ic_progress_gray).getConstantState(),
+                        res.getDrawable(R.mipmap.ic_alert_gray).getConstantState(),
+                        res.getDrawable(R.drawable.img_placeholder).getConstantState() };
+                sInfoDrawables.put(context, info);
+            }
+            return info;
+        }
     }
 
     /**
@@ -281,14 +535,11 @@ public abstract class RemoteDrawable extends PreviewDrawable {
      */
     @Override
     public void Unload() {
-        Drawable d = getDrawable();
-        if (d!=null && d instanceof BitmapDrawable) {
-            Bitmap bmp = ((BitmapDrawable)d).getBitmap();
-            recycleBitmap(bmp);
-        }
+        Drawable d = takeDrawable(); // unpublish before bitmap goes to pool
         if (mMemoryLimitPool!=null)
-            mMemoryLimitPool.recycle(mUrl);
+            mMemoryLimitPool.remove(this); // only own entry - other drawables may show same url
         super.Unload();
+        releaseDrawableOnUiThread(d); // may be drawn right now
     }
 
     /**
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * lookahead loading for scrolling host
+ *
+ * host reports viewport on every scroll (instead of LazyDrawable.setViewport()), prefetcher
+ * tracks scroll velocity and direction and starts loading drawables, which are within lookahead
+ * distance ahead of viewport - so images are decoded before they becomes visible
+ *
+ * number of loads started per update (budget) shrinks, when heap are nearly full or
+ * executor queue are deep
+ *
+ * all methods must be called from UI thread
+ */
+public class ScrollPrefetcher {
+    /* pause between viewport updates, after which scroll considered as new gesture */
+    private static final long GESTURE_GAP = 250;
+    private static final float SMOOTHING = 0.3f;
+    /* px/ms - slower scroll are treated as stationary viewport */
+    private static final float MIN_VELOCITY = 0.05f;
+    /* heap usage range, where budget shrinks from max to zero */
+    private static final float MEMORY_LOW = 0.6f;
+    private static final float MEMORY_HIGH = 0.85f;
+
+    private final Object mExecutorTag;
+    private final ArrayList<LazyDrawable> mDrawables = new ArrayList<LazyDrawable>();
+    private final ArrayList<LazyDrawable> mCandidates = new ArrayList<LazyDrawable>();
+    private final Rect mViewport = new Rect();
+    private final Rect mLookahead = new Rect();
+    private boolean mHasViewport = false;
+    private long mLastUpdate = 0;
+    private float mVelocityX = 0;
+    private float mVelocityY = 0;
+    private int mLookaheadDistance = -1;
+    private long mLookaheadTime = 500;
+    private int mMaxBudget = 8;
+
+    private final Comparator<LazyDrawable> mByDistance = new Comparator<LazyDrawable>() {
+        @Override
+        public int compare(LazyDrawable d1, LazyDrawable d2) {
+            int l = ViewportScheduler.distance(mViewport, d1.mBounds);
+            int r = ViewportScheduler.distance(mViewport, d2.mBounds);
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param executorTag - tag for queue (same as passed to drawables)
+     */
+    public ScrollPrefetcher(Object executorTag) {
+        mExecutorTag = executorTag;
+    }
+
+    /**
+     * set drawables of host (for example, all spans of laid out text)
+     * @param drawables
+     */
+    public void setDrawables(Collection<? extends LazyDrawable> drawables) {
+        mDrawables.clear();
+        if (drawables!=null)
+            mDrawables.addAll(drawables);
+    }
+
+    /**
+     * set minimal lookahead distance
+     * @param distance - pixels, or -1 to use viewport size (default)
+     */
+    public void setLookahead(int distance) { mLookaheadDistance = distance; }
+
+    /**
+     * fast scroll extends lookahead to distance, passed by viewport within this time
+     * @param millis
+     */
+    public void setLookaheadTime(long millis) { mLookaheadTime = millis; }
+
+    /**
+     * set max number of loads, started per viewport update
+     * @param budget
+     */
+    public void setMaxBudget(int budget) { mMaxBudget = Math.max(0, budget); }
+
+    /**
+     *
+     * @return smoothed horizontal scroll velocity (px/ms, positive - viewport moves right)
+     */
+    public float getVelocityX() { return mVelocityX; }
+
+    /**
+     *
+     * @return smoothed vertical scroll velocity (px/ms, positive - viewport moves down)
+     */
+    public float getVelocityY() { return mVelocityY; }
+
+    /**
+     * report current viewport (call on scroll); updates LazyDrawable.setViewport() for tag
+     * @param viewport - visible area in drawables bounds coordinates
+     */
+    public void onViewportChanged(Rect viewport) {
+        LazyDrawable.setViewport(mExecutorTag, viewport);
+        if (viewport==null) {
+            mHasViewport = false;
+            mVelocityX = mVelocityY = 0;
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long dt = now - mLastUpdate;
+        if (!mHasViewport || dt > GESTURE_GAP) {
+            mVelocityX = mVelocityY = 0;
+        } else if (dt > 0) {
+            float vx = (float) (viewport.left - mViewport.left) / dt;
+            float vy = (float) (viewport.top - mViewport.top) / dt;
+            mVelocityX += (vx - mVelocityX) * SMOOTHING;
+            mVelocityY += (vy - mVelocityY) * SMOOTHING;
+        }
+        mViewport.set(viewport);
+        mHasViewport = true;
+        mLastUpdate = now;
+        prefetch();
+    }
+
+    /**
+     * start loading for not loaded drawables within lookahead area, nearest first
+     */
+    private void prefetch() {
+        int budget = getBudget();
+        if (budget < 1 || mDrawables.isEmpty()) return;
+        computeLookahead(mLookahead);
+        mCandidates.clear();
+        for (LazyDrawable d : mDrawables) {
+            Rect bounds = d.mBounds;
+            // visible drawables are loaded by draw()
+            if (Rect.intersects(mLookahead, bounds) && !Rect.intersects(mViewport, bounds) && d.needsLoading())
+                mCandidates.add(d);
+        }
+        if (mCandidates.isEmpty()) return;
+        Collections.sort(mCandidates, mByDistance);
+        if (mCandidates.size() > budget)
+            mCandidates.subList(budget, mCandidates.size()).clear();
+        LazyDrawable.loadAll(mCandidates);
+        mCandidates.clear();
+    }
+
+    /**
+     * area ahead of viewport in direction of scroll (around viewport, if viewport does not move)
+     * @param out
+     */
+    private void computeLookahead(Rect out) {
+        out.set(mViewport);
+        boolean vertical = Math.abs(mVelocityY) >= Math.abs(mVelocityX);
+        float velocity = vertical ? mVelocityY : mVelocityX;
+        int distance = mLookaheadDistance >= 0 ? mLookaheadDistance
+                : (vertical ? mViewport.height() : mViewport.width());
+        distance = Math.max(distance, (int) (Math.abs(velocity) * mLookaheadTime));
+        if (Math.abs(velocity) < MIN_VELOCITY) {
+            out.inset(-distance / 2, -distance / 2);
+        } else if (vertical) {
+            if (velocity > 0) out.bottom += distance; else out.top -= distance;
+        } else {
+            if (velocity > 0) out.right += distance; else out.left -= distance;
+        }
+    }
+
+    /**
+     * number of loads, allowed to start now: max budget, reduced when heap are nearly full,
+     * or when executor already has more queued loads, than it could run
+     * @return budget
+     */
+    protected int getBudget() {
+        Runtime rt = Runtime.getRuntime();
+        float used = (float) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory();
+        float factor = 1f - (used - MEMORY_LOW) / (MEMORY_HIGH - MEMORY_LOW);
+        int budget = (int) (mMaxBudget * Math.max(0f, Math.min(1f, factor)));
+        TagExecutor executor = LazyDrawable.findExecutor(mExecutorTag);
+        if (executor!=null) {
+            int queued = executor.getQueue().size();
+            budget = Math.min(budget, Math.max(0, executor.getConcurrencyLimit() * 2 - queued));
+        }
+        return budget;
+    }
+}
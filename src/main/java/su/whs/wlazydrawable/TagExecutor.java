@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import su.whs.wlazydrawable.LazyDrawable.ComparableRunnable;
+import su.whs.wlazydrawable.LazyDrawable.LoadState;
+import su.whs.wlazydrawable.LazyDrawable.LoadingRunnable;
+import su.whs.wlazydrawable.LazyDrawable.OverloadPolicy;
+
+/**
+ * logical loading queue for executor tag
+ *
+ * runnables are executed by shared {@link LoaderPool} threads, so tags does not multiply threads;
+ * supports overload policy and global cancellation
+ */
+public class TagExecutor implements Executor {
+    private static final String TAG = "TagExecutor";
+    private final LoaderPool mPool;
+    private final LoadingQueue mQueue;
+    private final OverloadPolicy mOverloadPolicy;
+    private final long mBlockTimeout;
+    private final LinkedHashSet<Runnable> mDeferred = new LinkedHashSet<Runnable>();
+    private final ConcurrencyLimiter mLimiter;
+    private volatile int mWeight;
+    /* guarded by LoaderPool lock */
+    int mActive = 0;
+    long mPass = 0;
+
+    TagExecutor(LoaderPool pool, int corePoolSize, int maxPoolSize, int weight,
+                int queueCapacity, OverloadPolicy overloadPolicy, long blockTimeoutMillis) {
+        mPool = pool;
+        mLimiter = new ConcurrencyLimiter(corePoolSize, maxPoolSize);
+        mWeight = Math.max(1, weight);
+        mQueue = new LoadingQueue(queueCapacity);
+        mOverloadPolicy = overloadPolicy;
+        mBlockTimeout = blockTimeoutMillis;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!mQueue.offer(command))
+            onOverload(command);
+        mPool.signal(this);
+    }
+
+    /**
+     * queue batch of runnables (single queue lock, overload policy applied to rejected ones)
+     * @param commands - runnables
+     */
+    public void executeAll(Collection<? extends Runnable> commands) {
+        if (commands.isEmpty()) return;
+        ArrayList<Runnable> rejected = new ArrayList<Runnable>();
+        int queued = mQueue.offerAll(commands, rejected);
+        for (Runnable r : rejected)
+            onOverload(r);
+        mPool.signal(this, Math.max(1, queued));
+    }
+
+    /**
+     * queue are full - apply overload policy
+     * @param r - rejected runnable
+     */
+    protected void onOverload(Runnable r) {
+        switch (mOverloadPolicy) {
+            case DROP_LOWEST_PRIORITY:
+                if (r instanceof ComparableRunnable) {
+                    ComparableRunnable victim = mQueue.replaceLowest((ComparableRunnable) r);
+                    if (victim==r)
+                        reject(r); // queued loads has same or higher priority
+                    else
+                        shed(victim);
+                    return;
+                }
+                break;
+            case DEFER:
+                synchronized (mDeferred) { mDeferred.add(r); }
+                return;
+            case BLOCK:
+                try {
+                    if (mQueue.offer(r, mBlockTimeout, TimeUnit.MILLISECONDS)) return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+        reject(r);
+    }
+
+    /* queued runnable displaced by new one */
+    private void shed(Runnable r) {
+        if (r instanceof LoadingRunnable) {
+            ((LoadingRunnable) r).dequeued();
+            ((LoadingRunnable) r).onShed();
+        }
+    }
+
+    /* submitted runnable not queued */
+    private void reject(Runnable r) {
+        if (r instanceof LoadingRunnable) {
+            ((LoadingRunnable) r).dequeued();
+            ((LoadingRunnable) r).onRejected();
+        }
+    }
+
+    /**
+     * move deferred runnables into queue while it has free space
+     */
+    private void resumeDeferred() {
+        boolean resumed = false;
+        for (;;) {
+            Runnable r;
+            synchronized (mDeferred) {
+                if (mDeferred.isEmpty() || mQueue.remainingCapacity() < 1) break;
+                Iterator<Runnable> it = mDeferred.iterator();
+                r = it.next();
+                it.remove();
+            }
+            if (!mQueue.offer(r)) {
+                synchronized (mDeferred) { mDeferred.add(r); }
+                break;
+            }
+            resumed = true;
+        }
+        if (resumed) mPool.signal(this);
+    }
+
+    /**
+     * called by LoaderPool worker
+     * @param r
+     */
+    void runTask(Runnable r) {
+        long started = System.nanoTime();
+        boolean sampled = true;
+        boolean failed = true;
+        try {
+            r.run();
+            failed = false;
+            if (r instanceof LoadingRunnable) {
+                // loaders report errors by result, cancelled and prefetch runs are not samples
+                LoadState outcome = ((LoadingRunnable) r).takeOutcome();
+                sampled = outcome!=null;
+                failed = outcome==LoadState.ERROR;
+            }
+        } catch (Throwable t) {
+            if (r instanceof LoadingRunnable) {
+                ((LoadingRunnable) r).onExecutionFailed(t);
+            } else {
+                Log.e(TAG, "loading failed", t);
+            }
+        } finally {
+            if (sampled)
+                mLimiter.onSample(System.nanoTime() - started, failed);
+            resumeDeferred();
+        }
+    }
+
+    Runnable poll() {
+        return mQueue.poll();
+    }
+
+    /**
+     *
+     * @param r - runnable
+     * @return true if runnable queued or deferred
+     */
+    public boolean isPending(Runnable r) {
+        if (mQueue.contains(r)) return true;
+        synchronized (mDeferred) { return mDeferred.contains(r); }
+    }
+
+    /**
+     * remove queued (or deferred) runnable
+     * @param r - runnable
+     * @return true if runnable was removed
+     */
+    public boolean remove(Runnable r) {
+        boolean removed = mQueue.remove(r);
+        synchronized (mDeferred) {
+            removed |= mDeferred.remove(r);
+        }
+        return removed;
+    }
+
+    /**
+     * drop all queued and deferred runnables (running loads are not affected)
+     */
+    public void cancel() {
+        ArrayList<Runnable> dropped = new ArrayList<Runnable>();
+        mQueue.drainTo(dropped);
+        synchronized (mDeferred) {
+            dropped.addAll(mDeferred);
+            mDeferred.clear();
+        }
+        for (Runnable r : dropped) {
+            if (r instanceof LoadingRunnable)
+                ((LoadingRunnable) r).dequeued();
+        }
+    }
+
+    /**
+     * recalculate priorities of queued runnables (for example, after viewport changed)
+     */
+    public void reorder() {
+        mQueue.reprioritizeAll();
+    }
+
+    void reprioritize(ComparableRunnable r) {
+        mQueue.reprioritize(r);
+    }
+
+    public BlockingQueue<Runnable> getQueue() { return mQueue; }
+
+    /**
+     * set share of shared loader threads for this tag (relative to other tags)
+     * @param weight
+     */
+    public void setWeight(int weight) { mWeight = Math.max(1, weight); }
+
+    public int getWeight() { return mWeight; }
+
+    /**
+     *
+     * @return number of loads, started before tag competes for threads by weight (lower bound of concurrency limit)
+     */
+    public int getCorePoolSize() { return mLimiter.getMinLimit(); }
+
+    /**
+     *
+     * @return current (adaptive) limit of concurrent loads for tag
+     */
+    public int getConcurrencyLimit() { return mLimiter.getLimit(); }
+
+    /**
+     *
+     * @return adaptive concurrency controller (latency, throughput, limit bounds)
+     */
+    public ConcurrencyLimiter getLimiter() { return mLimiter; }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 whs.su
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package su.whs.wlazydrawable;
+
+import android.graphics.Rect;
+
+import java.util.WeakHashMap;
+
+/**
+ * keeps current host viewport for every executor tag and
+ * calculates distance from drawable bounds to viewport
+ *
+ * (drawables inside viewport have distance 0 and are loaded first)
+ */
+final class ViewportScheduler {
+    private static WeakHashMap<Object,Rect> mViewports = new WeakHashMap<Object, Rect>();
+
+    private ViewportScheduler() {}
+
+    /**
+     * store viewport for tag
+     * @param tag - executor tag
+     * @param viewport - visible area in drawable bounds coordinates, or null to reset
+     */
+    static synchronized void setViewport(Object tag, Rect viewport) {
+        if (viewport==null) {
+            mViewports.remove(tag);
+            return;
+        }
+        Rect r = mViewports.get(tag);
+        if (r==null) {
+            r = new Rect();
+            mViewports.put(tag,r);
+        }
+        r.set(viewport);
+    }
+
+    /**
+     *
+     * @param tag - executor tag
+     * @param bounds - drawable bounds
+     * @return distance (in pixels) from bounds to viewport, 0 if no viewport set for tag
+     */
+    static synchronized int distance(Object tag, Rect bounds) {
+        Rect viewport = mViewports.get(tag);
+        if (viewport==null) return 0;
+        return distance(viewport,bounds);
+    }
+
+    /**
+     * manhattan distance between two rects (0 if rects intersects)
+     */
+    static int distance(Rect viewport, Rect bounds) {
+        int dx = Math.max(0, Math.max(viewport.left - bounds.right, bounds.left - viewport.right));
+        int dy = Math.max(0, Math.max(viewport.top - bounds.bottom, bounds.top - viewport.bottom));
+        return dx + dy;
+    }
+}